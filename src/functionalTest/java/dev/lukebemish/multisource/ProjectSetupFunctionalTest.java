@@ -0,0 +1,228 @@
+package dev.lukebemish.multisource;
+
+import org.gradle.testkit.runner.BuildResult;
+import org.gradle.testkit.runner.GradleRunner;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProjectSetupFunctionalTest {
+    @TempDir
+    Path projectDir;
+
+    @Test
+    void rootTasksAreNotRealizedEagerly() throws IOException {
+        writeProject();
+
+        var result = run("help");
+
+        assertTrue(result.getOutput().contains("Realized tasks: [help]"), result.getOutput());
+    }
+
+    @Test
+    void configurationCacheIsReused() throws IOException {
+        writeProject();
+
+        var first = run("assemble", "--configuration-cache", "--configuration-cache-problems=fail");
+        assertTrue(first.getOutput().contains("Configuration cache entry stored."), first.getOutput());
+
+        var second = run("assemble", "--configuration-cache", "--configuration-cache-problems=fail");
+        assertTrue(second.getOutput().contains("Reusing configuration cache."), second.getOutput());
+    }
+
+    @Test
+    void isolatedProjectsReportNoProblems() throws IOException {
+        writeProject();
+
+        var result = run("assemble", "-Dorg.gradle.unsafe.isolated-projects=true");
+
+        assertTrue(result.getOutput().contains("Configuration cache entry stored."), result.getOutput());
+        assertFalse(result.getOutput().contains("problems were found"), result.getOutput());
+    }
+
+    @Test
+    void commonFromOnlySeesMinecraft() throws IOException {
+        writeProject();
+        Files.writeString(projectDir.resolve("fabric/build.gradle"), """
+            dependencies {
+                compileOnly files('loader-only.jar')
+            }
+            """);
+        Files.writeString(projectDir.resolve("build.gradle"), """
+            tasks.register('printClasspath') {
+                def classpath = configurations.compileClasspath.incoming.artifactView { lenient = true }.files
+                doLast {
+                    println "Classpath: ${classpath.files*.name}"
+                }
+            }
+            """, StandardOpenOption.APPEND);
+
+        var result = run("printClasspath");
+
+        var classpath = result.getOutput().lines().filter(line -> line.startsWith("Classpath: ")).findFirst().orElseThrow();
+        assertTrue(classpath.contains("minecraft"), classpath);
+        assertFalse(classpath.contains("loader-only.jar"), classpath);
+    }
+
+    @Test
+    void unselectedLoadersKeepTheirRootModel() throws IOException {
+        writeProject();
+        Files.writeString(projectDir.resolve("settings.gradle"), """
+            plugins {
+                id 'dev.lukebemish.multisource'
+            }
+
+            rootProject.name = 'test'
+
+            multisource.of(':') {
+                commonFrom('main', [], 'fabric')
+                fabric('fabric', ['main']) {
+                    minecraft.add 'com.mojang:minecraft:1.20.1'
+                    mappings.add loom.officialMojangMappings()
+                }
+                neoforge('neoforge', ['main']) {
+                    minecraft.add 'com.mojang:minecraft:1.20.1'
+                    mappings.add loom.officialMojangMappings()
+                    neoForge.add 'net.neoforged:forge:1.20.1-47.1.106'
+                }
+            }
+            """);
+        Files.writeString(projectDir.resolve("build.gradle"), """
+            dependencies {
+                modFabricImplementation files('mod.jar')
+                neoforgeInclude files('nested.jar')
+            }
+
+            java {
+                registerFeature('neoforge') {
+                    usingSourceSet sourceSets.neoforge
+                }
+            }
+
+            println "Subprojects: ${subprojects*.path.sort()}"
+            """, StandardOpenOption.APPEND);
+
+        var result = run("help", "-Pmultisource.loaders=fabric");
+
+        assertTrue(result.getOutput().contains("Subprojects: [:fabric]"), result.getOutput());
+    }
+
+    @Test
+    void unknownSelectedLoadersAreRejected() throws IOException {
+        writeProject();
+
+        var result = runner("help", "-Pmultisource.loaders=fabirc").buildAndFail();
+
+        assertTrue(result.getOutput().contains("Loader fabirc is listed in multisource.loaders, but is not declared by any multisource.of block"), result.getOutput());
+    }
+
+    @Test
+    void blankLoaderSelectionSelectsEveryLoader() throws IOException {
+        writeProject();
+        Files.writeString(projectDir.resolve("build.gradle"), """
+            println "Subprojects: ${subprojects*.path.sort()}"
+            """, StandardOpenOption.APPEND);
+
+        var result = run("help", "-Pmultisource.loaders= ");
+
+        assertTrue(result.getOutput().contains("Subprojects: [:fabric]"), result.getOutput());
+    }
+
+    @Test
+    void unknownIdentityMappedLoadersAreRejected() throws IOException {
+        Files.writeString(projectDir.resolve("settings.gradle"), """
+            plugins {
+                id 'dev.lukebemish.multisource'
+            }
+
+            multisource.of(':') {
+                fabric('fabric', []) {}
+                identityMapped('neoforge')
+            }
+            """);
+
+        var result = runner("help").buildAndFail();
+
+        assertTrue(result.getOutput().contains("Loader neoforge is declared as identity-mapped, but is not a loader with its own subproject"), result.getOutput());
+    }
+
+    @Test
+    void undeclaredEnvironmentsAreRejected() throws IOException {
+        Files.writeString(projectDir.resolve("settings.gradle"), """
+            plugins {
+                id 'dev.lukebemish.multisource'
+            }
+
+            multisource.of(':') {
+                commonFrom('main', [], ':environments:fabric')
+            }
+            """);
+
+        var result = runner("help").buildAndFail();
+
+        assertTrue(result.getOutput().contains("Common source set main takes its classpath from :environments:fabric, which is not an environment declared before this multisource.of block"), result.getOutput());
+    }
+
+    private BuildResult run(String... arguments) {
+        return runner(arguments).build();
+    }
+
+    private GradleRunner runner(String... arguments) {
+        List<String> allArguments = new ArrayList<>(List.of(arguments));
+        allArguments.add("--stacktrace");
+        return GradleRunner.create()
+            .withProjectDir(projectDir.toFile())
+            .withPluginClasspath()
+            .withArguments(allArguments);
+    }
+
+    private void writeProject() throws IOException {
+        Files.createDirectories(projectDir.resolve("fabric"));
+        Files.writeString(projectDir.resolve("settings.gradle"), """
+            plugins {
+                id 'dev.lukebemish.multisource'
+            }
+
+            rootProject.name = 'test'
+
+            multisource.of(':') {
+                // Only one loader subproject, so that Minecraft is only set up once. Minecraft 1.20.1 is the newest
+                // version that runs on the Java 17 that the test JVM, and so the TestKit daemon, uses
+                commonFrom('main', [], 'fabric')
+                fabric('fabric', ['main']) {
+                    minecraft.add 'com.mojang:minecraft:1.20.1'
+                    mappings.add loom.officialMojangMappings()
+                }
+            }
+            """);
+        Files.writeString(projectDir.resolve("build.gradle"), """
+            def realized = []
+            tasks.configureEach {
+                realized.add(it.name)
+            }
+
+            java {
+                withSourcesJar()
+                withJavadocJar()
+                registerFeature('fabric') {
+                    usingSourceSet sourceSets.fabric
+                    withSourcesJar()
+                    withJavadocJar()
+                }
+            }
+
+            gradle.taskGraph.whenReady {
+                println "Realized tasks: ${realized.sort()}"
+            }
+            """);
+    }
+}
@@ -0,0 +1,145 @@
+package dev.lukebemish.multisource.jarinjar;
+
+import org.gradle.testkit.runner.BuildResult;
+import org.gradle.testkit.runner.GradleRunner;
+import org.gradle.testkit.runner.TaskOutcome;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JarInJarFunctionalTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void bundleIsLoadedFromCacheInAnotherCheckout() throws IOException {
+        Path cache = tempDir.resolve("build-cache");
+        Path first = tempDir.resolve("first");
+        Path second = tempDir.resolve("second");
+        writeProject(first, cache);
+        writeProject(second, cache);
+
+        var firstResult = run(first, "bundle", "--build-cache");
+        assertEquals(TaskOutcome.SUCCESS, firstResult.task(":bundle").getOutcome());
+
+        var secondResult = run(second, "bundle", "--build-cache");
+        assertEquals(TaskOutcome.FROM_CACHE, secondResult.task(":bundle").getOutcome());
+        try (var zip = new ZipFile(second.resolve("build/libs/test-1.0-bundle.jar").toFile())) {
+            assertNotNull(zip.getEntry("META-INF/jars/nested-1.0.jar"));
+        }
+    }
+
+    @Test
+    void bundleIsConfigurationCacheCompatible() throws IOException {
+        Path projectDir = tempDir.resolve("project");
+        writeProject(projectDir, tempDir.resolve("build-cache"));
+
+        var first = run(projectDir, "bundle", "--configuration-cache", "--configuration-cache-problems=fail");
+        assertTrue(first.getOutput().contains("Configuration cache entry stored."), first.getOutput());
+
+        Files.delete(projectDir.resolve("build/libs/test-1.0-bundle.jar"));
+        var second = run(projectDir, "bundle", "--configuration-cache", "--configuration-cache-problems=fail");
+        assertTrue(second.getOutput().contains("Reusing configuration cache."), second.getOutput());
+        assertEquals(TaskOutcome.SUCCESS, second.task(":bundle").getOutcome());
+    }
+
+    private static BuildResult run(Path projectDir, String... arguments) {
+        return GradleRunner.create()
+            .withProjectDir(projectDir.toFile())
+            .withPluginClasspath()
+            .withArguments(arguments)
+            .build();
+    }
+
+    private static void writeProject(Path projectDir, Path cache) throws IOException {
+        Files.createDirectories(projectDir);
+        Files.writeString(projectDir.resolve("settings.gradle"), """
+            plugins {
+                id 'dev.lukebemish.multisource'
+            }
+
+            buildCache {
+                local {
+                    directory = file('%s')
+                }
+            }
+
+            rootProject.name = 'test'
+            """.formatted(cache.toAbsolutePath().toString().replace('\\', '/')));
+        Files.writeString(projectDir.resolve("build.gradle"), """
+            import dev.lukebemish.multisource.jarinjar.JarInJar
+
+            plugins {
+                id 'base'
+            }
+
+            version = '1.0'
+
+            repositories {
+                maven {
+                    url = file('repo')
+                }
+            }
+
+            configurations {
+                nested
+            }
+
+            dependencies {
+                nested 'com.example:nested:1.0'
+            }
+
+            tasks.register('bundle', JarInJar) {
+                inputFiles.from('input.jar')
+                configuration(project.configurations.nested)
+                makeFabricJsons = true
+                archiveClassifier = 'bundle'
+            }
+            """);
+        writeJar(projectDir.resolve("input.jar"), Map.of(
+            JarFile.MANIFEST_NAME, "Manifest-Version: 1.0\r\n\r\n",
+            "fabric.mod.json", "{\"schemaVersion\":1,\"id\":\"test\",\"version\":\"1.0\"}"
+        ));
+        Path module = projectDir.resolve("repo/com/example/nested/1.0");
+        Files.createDirectories(module);
+        writeJar(module.resolve("nested-1.0.jar"), Map.of(
+            JarFile.MANIFEST_NAME, "Manifest-Version: 1.0\r\n\r\n",
+            "com/example/Nested.class", "not really a class"
+        ));
+        Files.writeString(module.resolve("nested-1.0.pom"), """
+            <?xml version="1.0" encoding="UTF-8"?>
+            <project xmlns="http://maven.apache.org/POM/4.0.0">
+                <modelVersion>4.0.0</modelVersion>
+                <groupId>com.example</groupId>
+                <artifactId>nested</artifactId>
+                <version>1.0</version>
+            </project>
+            """);
+    }
+
+    private static void writeJar(Path path, Map<String, String> contents) throws IOException {
+        try (var out = new ZipOutputStream(Files.newOutputStream(path))) {
+            for (var entry : contents.entrySet().stream().sorted(Map.Entry.comparingByKey()).toList()) {
+                var zipEntry = new ZipEntry(entry.getKey());
+                zipEntry.setTimeLocal(LocalDateTime.of(2020, 1, 1, 0, 0));
+                out.putNextEntry(zipEntry);
+                out.write(entry.getValue().getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package dev.lukebemish.multisource;
+
+import com.google.common.hash.HashCode;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the checksums published alongside an archive from the bytes as they are written, so that the archive does
+ * not have to be read again afterwards. Checksums are written as sidecar files named after the archive, in the same
+ * format as those written by Maven publications.
+ */
+public final class ArchiveDigests {
+    /**
+     * The extensions of the sidecar files written, in the order they are written.
+     */
+    public static final List<String> EXTENSIONS = List.of("md5", "sha1", "sha256", "sha512");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Map<String, MessageDigest> digests = new LinkedHashMap<>();
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    public ArchiveDigests() {
+        try {
+            digests.put("md5", MessageDigest.getInstance("MD5"));
+            digests.put("sha1", MessageDigest.getInstance("SHA-1"));
+            digests.put("sha256", MessageDigest.getInstance("SHA-256"));
+            digests.put("sha512", MessageDigest.getInstance("SHA-512"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Adds the remaining bytes of a buffer, without changing its position.
+     */
+    public void update(ByteBuffer buffer) {
+        for (var digest : digests.values()) {
+            digest.update(buffer.duplicate());
+        }
+    }
+
+    /**
+     * Adds a range of a file, read through a single fixed-size buffer. Used for bytes that are copied to the archive by
+     * the file system, and never pass through the writer. Ranges are not memory-mapped, as an archive may be copied as
+     * many small ranges and mappings are only released once garbage collected.
+     */
+    public void update(FileChannel channel, long position, long length) throws IOException {
+        long end = position + length;
+        while (position < end) {
+            buffer.clear().limit((int) Math.min(BUFFER_SIZE, end - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            update(buffer.flip());
+            position += read;
+        }
+    }
+
+    /**
+     * {@return a stream that adds everything written through it}
+     */
+    public OutputStream wrap(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                for (var digest : digests.values()) {
+                    digest.update((byte) b);
+                }
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                for (var digest : digests.values()) {
+                    digest.update(b, off, len);
+                }
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Writes a sidecar file for each checksum next to the archive.
+     */
+    public void writeSidecars(Path archive) throws IOException {
+        for (var entry : digests.entrySet()) {
+            String hash = HashCode.fromBytes(entry.getValue().digest()).toString();
+            Files.writeString(sidecar(archive, entry.getKey()), hash, StandardCharsets.UTF_8);
+        }
+    }
+
+    public static Path sidecar(Path archive, String extension) {
+        return archive.resolveSibling(archive.getFileName() + "." + extension);
+    }
+}
@@ -1,6 +1,7 @@
 package dev.lukebemish.multisource;
 
 import org.gradle.api.artifacts.dsl.RepositoryHandler;
+import org.gradle.api.attributes.Attribute;
 import org.gradle.api.plugins.JavaPlugin;
 
 import java.util.Locale;
@@ -17,6 +18,7 @@ public final class Constants {
     public static final String COMPILE_CLASSPATH = JavaPlugin.COMPILE_CLASSPATH_CONFIGURATION_NAME;
     public static final String COMPILE_CLASSPATH_EXPOSED = COMPILE_CLASSPATH+"Exposed";
     public static final String API_ELEMENTS = JavaPlugin.API_ELEMENTS_CONFIGURATION_NAME;
+    public static final String MINECRAFT_CLASSPATH_EXPOSED = "minecraftClasspathExposed";
 
     public static final String RUNTIME_MOD_CLASSES = "runtimeModClasses";
     public static final String LOCAL_RUNTIME = "localRuntime";
@@ -31,6 +33,10 @@ public final class Constants {
     public static final String OUTPUT_SOURCES_JAR = "outputSourcesJar";
     public static final String INCLUDE = "include";
 
+    public static final String MULTISOURCE_CATEGORY = "multisource";
+    public static final Attribute<String> LOADER_ATTRIBUTE = Attribute.of("dev.lukebemish.multisource.loader", String.class);
+    public static final Attribute<String> ROLE_ATTRIBUTE = Attribute.of("dev.lukebemish.multisource.role", String.class);
+
     public static void neoMaven(RepositoryHandler repositories) {
         repositories.maven(repo -> {
             repo.setUrl("https://maven.neoforged.net/");
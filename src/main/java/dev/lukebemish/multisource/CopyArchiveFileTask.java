@@ -1,27 +1,35 @@
 package dev.lukebemish.multisource;
 
 import org.gradle.api.DefaultTask;
+import org.gradle.api.Project;
 import org.gradle.api.file.ConfigurableFileCollection;
 import org.gradle.api.file.DirectoryProperty;
 import org.gradle.api.file.RegularFileProperty;
 import org.gradle.api.plugins.BasePluginExtension;
 import org.gradle.api.provider.Property;
 import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.Input;
 import org.gradle.api.tasks.InputFiles;
 import org.gradle.api.tasks.Internal;
 import org.gradle.api.tasks.Optional;
 import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.OutputFiles;
 import org.gradle.api.tasks.PathSensitive;
 import org.gradle.api.tasks.PathSensitivity;
 import org.gradle.api.tasks.TaskAction;
+import org.gradle.work.DisableCachingByDefault;
 
 import javax.inject.Inject;
 import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
 
+@DisableCachingByDefault(because = "copying is cheaper than a cache round trip")
 public abstract class CopyArchiveFileTask extends DefaultTask {
     @InputFiles
     @Optional
@@ -31,6 +39,17 @@ public abstract class CopyArchiveFileTask extends DefaultTask {
     @OutputFile
     public abstract RegularFileProperty getArchiveFile();
 
+    /**
+     * Whether checksum files are written next to the archive, computed while the archive is written. Defaults to
+     * {@code false}.
+     * @see ArchiveDigests
+     */
+    @Input
+    public abstract Property<Boolean> getWriteChecksums();
+
+    @OutputFiles
+    public abstract ConfigurableFileCollection getChecksumFiles();
+
     @Internal
     public abstract Property<String> getArchiveClassifier();
 
@@ -43,6 +62,15 @@ public abstract class CopyArchiveFileTask extends DefaultTask {
     @Internal
     public abstract Property<String> getArchiveBaseName();
 
+    /**
+     * Whether the output may be a hard link to the input instead of a copy, where the file system supports it. The
+     * input and output are then the same file, so anything that later rewrites either of them in place, such as the
+     * task producing the input running again or a signing step on the output, silently changes the other one as well.
+     * Only enable this when neither file is written again after this task runs. Defaults to {@code false}.
+     */
+    @Internal
+    public abstract Property<Boolean> getLinkOutput();
+
     @Internal
     public abstract Property<String> getArchiveVersion();
 
@@ -50,17 +78,25 @@ public abstract class CopyArchiveFileTask extends DefaultTask {
     public CopyArchiveFileTask() {
         getArchiveClassifier().convention("");
         getArchiveExtension().convention("jar");
-        getArchiveVersion().convention(getProject().provider(() -> getProject().getVersion().toString()));
+        getLinkOutput().convention(false);
+        getWriteChecksums().convention(false);
+        // Only the project, not the task, is captured, and the version is stored by value in the configuration cache
+        Project project = getProject();
+        getArchiveVersion().convention(project.provider(() -> project.getVersion().toString()));
 
-        BasePluginExtension basePluginExtension = getProject().getExtensions().getByType(BasePluginExtension.class);
+        BasePluginExtension basePluginExtension = project.getExtensions().getByType(BasePluginExtension.class);
         getArchiveBaseName().convention(basePluginExtension.getArchivesName());
 
-        getDestinationDirectory().convention(getProject().getLayout().getBuildDirectory().dir("libs"));
+        getDestinationDirectory().convention(project.getLayout().getBuildDirectory().dir("libs"));
 
         Provider<String> nameWithVersion = getArchiveBaseName().zip(getArchiveVersion(), (name, version) -> name + "-" + version);
         Provider<String> nameWithVersionWithClassifier = nameWithVersion.zip(getArchiveClassifier(), (name, classifier) -> classifier.isEmpty()? name : name + "-" + classifier);
         Provider<String> fullFileName = nameWithVersionWithClassifier.zip(getArchiveExtension(), (name, extension) -> name + "." + extension);
         getArchiveFile().convention(getDestinationDirectory().file(fullFileName));
+        getChecksumFiles().from(getArchiveFile().zip(getWriteChecksums(), (file, write) -> write ?
+            ArchiveDigests.EXTENSIONS.stream().map(extension -> ArchiveDigests.sidecar(file.getAsFile().toPath(), extension).toFile()).toList() :
+            List.of()
+        ));
     }
 
     @TaskAction
@@ -68,9 +104,45 @@ public void run() {
         File input = getInputFiles().getSingleFile();
         File output = getArchiveFile().get().getAsFile();
         try {
-            Files.copy(input.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            copy(input.toPath(), output.toPath());
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
+
+    protected void copy(Path input, Path output) throws IOException {
+        Files.deleteIfExists(output);
+        try (var in = FileChannel.open(input, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (!getLinkOutput().get() || !tryLink(input, output)) {
+                // The data is copied by the kernel without passing through the heap; no blocks are shared with the input
+                try (var out = FileChannel.open(output, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                    long position = 0;
+                    while (position < size) {
+                        long transferred = in.transferTo(position, size - position, out);
+                        if (transferred <= 0) {
+                            throw new IOException("Unexpected end of file while copying " + input);
+                        }
+                        position += transferred;
+                    }
+                }
+            }
+            if (getWriteChecksums().get()) {
+                // The copy never passes through the heap, so the input is read once more, most likely from the page cache
+                var digests = new ArchiveDigests();
+                digests.update(in, 0, size);
+                digests.writeSidecars(output);
+            }
+        }
+    }
+
+    private static boolean tryLink(Path input, Path output) {
+        try {
+            Files.createLink(output, input);
+            return true;
+        } catch (IOException | UnsupportedOperationException ignored) {
+            // Different file stores, or no hard links; fall back to copying
+            return false;
+        }
+    }
 }
@@ -0,0 +1,69 @@
+package dev.lukebemish.multisource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The parent relationships between the loaders of a multisource root, checked for cycles and with the ancestors of
+ * every loader computed once, when the root's configuration is complete.
+ */
+final class LoaderGraph {
+    private final Map<String, LoaderSet> loaders;
+    private final Map<String, Set<String>> ancestors = new HashMap<>();
+
+    private LoaderGraph(Map<String, LoaderSet> loaders) {
+        this.loaders = loaders;
+    }
+
+    static LoaderGraph of(Map<String, LoaderSet> loaders) {
+        var graph = new LoaderGraph(Map.copyOf(loaders));
+        // Visiting in post-order means every loader's parents are finished before the loader itself
+        var inProgress = new LinkedHashSet<String>();
+        for (String name : loaders.keySet()) {
+            graph.visit(name, inProgress);
+        }
+        return graph;
+    }
+
+    private void visit(String name, LinkedHashSet<String> inProgress) {
+        if (ancestors.containsKey(name)) {
+            return;
+        }
+        if (!inProgress.add(name)) {
+            List<String> cycle = new ArrayList<>(inProgress);
+            cycle = cycle.subList(cycle.indexOf(name), cycle.size());
+            throw new IllegalArgumentException("Circular dependency detected: " + String.join(" -> ", cycle) + " -> " + name);
+        }
+        Set<String> found = new LinkedHashSet<>();
+        for (String parent : parents(name)) {
+            if (!loaders.containsKey(parent)) {
+                throw new IllegalArgumentException("Loader " + name + " has unknown parent " + parent);
+            }
+            visit(parent, inProgress);
+            found.add(parent);
+            found.addAll(ancestors.get(parent));
+        }
+        inProgress.remove(name);
+        ancestors.put(name, Collections.unmodifiableSet(found));
+    }
+
+    /**
+     * {@return the direct parents of a loader, in the order they were declared}
+     */
+    List<String> parents(String name) {
+        return loaders.get(name).getParents();
+    }
+
+    /**
+     * {@return every loader a loader inherits from, directly or transitively; each direct parent comes before its own
+     * ancestors, in the order the parents were declared}
+     */
+    Set<String> ancestors(String name) {
+        return ancestors.get(name);
+    }
+}
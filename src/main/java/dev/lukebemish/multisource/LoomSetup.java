@@ -0,0 +1,134 @@
+package dev.lukebemish.multisource;
+
+import net.fabricmc.loom.LoomRepositoryPlugin;
+import net.fabricmc.loom.api.LoomGradleExtensionAPI;
+import net.fabricmc.loom.task.RemapJarTask;
+import net.fabricmc.loom.task.RemapSourcesJarTask;
+import org.gradle.api.Project;
+import org.gradle.api.Task;
+import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.plugins.JavaPluginExtension;
+import org.gradle.api.specs.Spec;
+import org.gradle.api.tasks.SourceSet;
+
+import java.util.Map;
+
+/**
+ * Everything that touches loom directly, so that the loom-facing wiring of loader projects is kept in one place.
+ */
+final class LoomSetup {
+    private LoomSetup() {}
+
+    static void applyRepositories(Project p) {
+        p.getPluginManager().apply(LoomRepositoryPlugin.class);
+    }
+
+    static void disableRunConfigs(Project p) {
+        var loom = p.getExtensions().getByType(LoomGradleExtensionAPI.class);
+        loom.getRunConfigs().configureEach(run -> run.setIdeConfigGenerated(false));
+    }
+
+    /**
+     * Exposes only loom's mapped Minecraft jar and the Minecraft libraries, without the loader or any mod dependencies,
+     * for common source sets compiled against this project.
+     */
+    static void exposeMinecraftClasspath(Project p, String loader) {
+        var minecraftClasspath = p.getConfigurations().maybeCreate(Constants.MINECRAFT_CLASSPATH_EXPOSED);
+        minecraftClasspath.setCanBeResolved(false);
+        minecraftClasspath.setCanBeConsumed(true);
+        minecraftClasspath.extendsFrom(
+            p.getConfigurations().getByName(net.fabricmc.loom.util.Constants.Configurations.MINECRAFT_NAMED_COMPILE),
+            p.getConfigurations().getByName(net.fabricmc.loom.util.Constants.Configurations.MINECRAFT_COMPILE_LIBRARIES)
+        );
+        ProjectSetup.exposeVariant(p, minecraftClasspath, loader, Constants.MINECRAFT_CLASSPATH_EXPOSED);
+    }
+
+    /**
+     * @param remapOutput whether the root's jars are sent through this project to be remapped
+     */
+    static void setupSubprojectRemappingConsumer(Project p, String name, String root, boolean remapOutput) {
+        p.getDependencies().add("modCompileOnly", ProjectSetup.variantDependency(p, root, name, Constants.TO_REMAP_COMPILE_CLASSPATH));
+        p.getDependencies().add("modRuntimeOnly", ProjectSetup.variantDependency(p, root, name, Constants.TO_REMAP_RUNTIME_CLASSPATH));
+        if (!remapOutput) {
+            return;
+        }
+
+        var outputJar = p.getConfigurations().maybeCreate(Constants.OUTPUT_JAR);
+        var outputSourcesJar = p.getConfigurations().maybeCreate(Constants.OUTPUT_SOURCES_JAR);
+
+        outputJar.setCanBeResolved(true);
+        outputJar.setCanBeConsumed(false);
+        outputJar.setTransitive(false);
+        outputSourcesJar.setCanBeResolved(true);
+        outputSourcesJar.setCanBeConsumed(false);
+        outputSourcesJar.setTransitive(false);
+
+        p.getDependencies().add(Constants.OUTPUT_JAR, ProjectSetup.variantDependency(p, root, name, Constants.OUTPUT_JAR));
+        p.getDependencies().add(Constants.OUTPUT_SOURCES_JAR, ProjectSetup.variantDependency(p, root, name, Constants.OUTPUT_SOURCES_JAR));
+
+        // Tasks only hold on to the files, as configurations cannot be stored in the configuration cache
+        FileCollection outputJarFiles = p.files(outputJar);
+        FileCollection outputSourcesJarFiles = p.files(outputSourcesJar);
+
+        var remapJar = p.getTasks().register("remapOutputJar", RemapJarTask.class, t -> {
+            t.dependsOn(outputJar);
+            t.getArchiveClassifier().set("output");
+            t.getInputFile().fileProvider(p.provider(() -> outputJarFiles.isEmpty() ? null : outputJarFiles.getSingleFile()));
+            t.onlyIf(new HasFiles(outputJarFiles));
+        });
+
+        var remapSourcesJar = p.getTasks().register("remapOutputSourcesJar", RemapSourcesJarTask.class);
+        remapSourcesJar.configure(t -> {
+            t.dependsOn(outputSourcesJar);
+            t.getArchiveClassifier().set("output-sources");
+            t.getInputFile().fileProvider(p.provider(() -> outputSourcesJarFiles.isEmpty() ? null : outputSourcesJarFiles.getSingleFile()));
+            t.onlyIf(new HasFiles(outputSourcesJarFiles));
+        });
+
+        var outputJarExposed = p.getConfigurations().maybeCreate(Constants.OUTPUT_JAR + "Exposed");
+        var outputSourcesJarExposed = p.getConfigurations().maybeCreate(Constants.OUTPUT_SOURCES_JAR + "Exposed");
+        ProjectSetup.exposeVariant(p, outputJarExposed, name, Constants.OUTPUT_JAR + "Exposed");
+        ProjectSetup.exposeVariant(p, outputSourcesJarExposed, name, Constants.OUTPUT_SOURCES_JAR + "Exposed");
+
+        outputJarExposed.getOutgoing().artifact(remapJar.flatMap(RemapJarTask::getArchiveFile));
+        outputSourcesJarExposed.getOutgoing().artifact(remapSourcesJar.flatMap(RemapSourcesJarTask::getArchiveFile));
+    }
+
+    private static final class HasFiles implements Spec<Task> {
+        private final FileCollection files;
+
+        private HasFiles(FileCollection files) {
+            this.files = files;
+        }
+
+        @Override
+        public boolean isSatisfiedBy(Task task) {
+            return !files.isEmpty();
+        }
+    }
+
+    static void setupSubprojectConsumer(Project p, String name, String root) {
+        var loom = p.getExtensions().getByType(LoomGradleExtensionAPI.class);
+        SourceSet runs = p.getExtensions().getByType(JavaPluginExtension.class).getSourceSets().maybeCreate("runs");
+        Configuration runtimeModClasses = p.getConfigurations().maybeCreate(Constants.RUNTIME_MOD_CLASSES);
+        p.getConfigurations().getByName("runsRuntimeClasspath").extendsFrom(p.getConfigurations().getByName(Constants.RUNTIME_CLASSPATH));
+        p.getConfigurations().getByName("runsImplementation").extendsFrom(runtimeModClasses);
+
+        loom.mods(mods -> {
+            var mod = mods.maybeCreate("main");
+            mod.configuration(runtimeModClasses);
+            mod.sourceSet(runs);
+        });
+        loom.getRunConfigs().configureEach(run -> {
+            run.setIdeConfigGenerated(true);
+            run.source(runs);
+        });
+        loom.createRemapConfigurations(runs);
+
+        p.getDependencies().add("runsRuntimeOnly", ProjectSetup.variantDependency(p, root, name, Constants.RUNTIME_CLASSPATH_EXPOSED));
+        var modClassesDep = ProjectSetup.variantDependency(p, root, name, Constants.RUNTIME_MOD_CLASSES);
+        modClassesDep.setTransitive(false);
+        p.getDependencies().add(runtimeModClasses.getName(), modClassesDep);
+    }
+}
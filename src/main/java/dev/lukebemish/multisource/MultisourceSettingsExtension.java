@@ -4,17 +4,69 @@
 import org.gradle.api.initialization.Settings;
 
 import javax.inject.Inject;
+import java.util.HashSet;
+import java.util.Set;
 
 public abstract class MultisourceSettingsExtension {
     private final Settings settings;
+    private final ProjectActions actions;
+    private final Set<String> environments = new HashSet<>();
+    private final Set<String> loaders = new HashSet<>();
 
     @Inject
-    public MultisourceSettingsExtension(Settings settings) {
+    public MultisourceSettingsExtension(Settings settings, ProjectActions actions) {
         this.settings = settings;
+        this.actions = actions;
+        settings.getGradle().settingsEvaluated(s -> ProjectSetup.checkRequestedLoaders(s, loaders));
     }
 
     public void of(String root, Action<ProjectSetup> action) {
-        ProjectSetup projectSetup = new ProjectSetup(root, settings);
+        ProjectSetup projectSetup = new ProjectSetup(root, settings, actions, environments);
         action.execute(projectSetup);
+        projectSetup.finish();
+        loaders.addAll(projectSetup.loaderNames());
+    }
+
+    /**
+     * Declares a subproject that sets up Minecraft for a single platform, version and mappings, without belonging to
+     * any root. Common source sets in any number of roots can then be compiled against it with
+     * {@code commonFrom(name, parents, path)}, so that a build with many roots only configures Minecraft once for each
+     * environment instead of once per root. The environment must be declared before the {@code multisource.of} blocks
+     * that use it.
+     * @param path the path of the subproject to create
+     * @param platform the loom platform, either {@code fabric} or {@code neoforge}
+     * @param dependencies sets up the {@code minecraft} and {@code mappings} dependencies, and for neoforge the
+     *                     {@code neoForge} dependency, in which case the argument is a {@link NeoforgeDependenciesSetup}
+     */
+    @SuppressWarnings("UnstableApiUsage")
+    public void environment(String path, String platform, Action<DependenciesSetup> dependencies) {
+        if (!path.startsWith(":")) {
+            throw new IllegalArgumentException("Environment path " + path + " must be absolute");
+        }
+        if (!environments.add(path)) {
+            throw new IllegalArgumentException("Environment " + path + " is already declared");
+        }
+        int separator = path.lastIndexOf(':');
+        SourceSetup setup = new SourceSetup(separator == 0 ? ":" : path.substring(0, separator), path.substring(separator + 1), settings, actions);
+        setup.setPlatform(platform);
+        setup.doAction(p -> Constants.neoMaven(p.getRepositories()));
+        setup.doAction(ProjectSetup::exposeClasspathConfigurations);
+        setup.doAction(p -> {
+            boolean neoforge = platform.equals("neoforge");
+            var dependenciesSetup = neoforge
+                ? p.getObjects().newInstance(NeoforgeDependenciesSetup.class, p)
+                : p.getObjects().newInstance(DependenciesSetup.class, p);
+            dependencies.execute(dependenciesSetup);
+            p.getConfigurations().maybeCreate("minecraft").fromDependencyCollector(dependenciesSetup.getMinecraft());
+            p.getConfigurations().maybeCreate("mappings").fromDependencyCollector(dependenciesSetup.getMappings());
+            if (neoforge) {
+                p.getConfigurations().maybeCreate("neoForge").fromDependencyCollector(((NeoforgeDependenciesSetup) dependenciesSetup).getNeoForge());
+            }
+        });
+        setup.doAction(p -> {
+            LoomSetup.disableRunConfigs(p);
+            LoomSetup.exposeMinecraftClasspath(p, path);
+        });
+        setup.register();
     }
 }
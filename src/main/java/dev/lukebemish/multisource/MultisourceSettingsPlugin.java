@@ -4,8 +4,11 @@
 import org.gradle.api.initialization.Settings;
 
 public class MultisourceSettingsPlugin implements Plugin<Settings> {
+    @SuppressWarnings("UnstableApiUsage")
     @Override
     public void apply(Settings settings) {
-        settings.getExtensions().create("multisource", MultisourceSettingsExtension.class, settings);
+        ProjectActions actions = new ProjectActions();
+        settings.getGradle().getLifecycle().beforeProject(actions::execute);
+        settings.getExtensions().create("multisource", MultisourceSettingsExtension.class, settings, actions);
     }
 }
@@ -0,0 +1,28 @@
+package dev.lukebemish.multisource;
+
+import org.gradle.api.Action;
+import org.gradle.api.Project;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Actions to run on projects as they are configured, looked up by project path. A single listener dispatches to these
+ * for every project, so the cost per project does not grow with the number of multisource roots and source sets.
+ */
+final class ProjectActions {
+    private final Map<String, List<Action<Project>>> actions = new HashMap<>();
+
+    void register(String path, Action<Project> action) {
+        actions.computeIfAbsent(path, k -> new ArrayList<>()).add(action);
+    }
+
+    void execute(Project project) {
+        var forProject = actions.get(project.getPath());
+        if (forProject != null) {
+            forProject.forEach(action -> action.execute(project));
+        }
+    }
+}
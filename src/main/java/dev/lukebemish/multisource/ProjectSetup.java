@@ -5,60 +5,69 @@
 import groovy.lang.DelegatesTo;
 import groovy.transform.stc.ClosureParams;
 import groovy.transform.stc.SimpleType;
-import net.fabricmc.loom.LoomRepositoryPlugin;
-import net.fabricmc.loom.api.LoomGradleExtensionAPI;
-import net.fabricmc.loom.api.RemapConfigurationSettings;
-import net.fabricmc.loom.task.RemapJarTask;
-import net.fabricmc.loom.task.RemapSourcesJarTask;
 import org.gradle.api.Action;
 import org.gradle.api.Project;
 import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.artifacts.Dependency;
 import org.gradle.api.artifacts.ModuleDependency;
 import org.gradle.api.artifacts.dsl.RepositoryHandler;
 import org.gradle.api.attributes.Attribute;
+import org.gradle.api.attributes.Category;
 import org.gradle.api.initialization.Settings;
 import org.gradle.api.plugins.JavaPluginExtension;
 import org.gradle.api.tasks.SourceSet;
 import org.gradle.api.tasks.bundling.Jar;
 import org.gradle.api.tasks.javadoc.Javadoc;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.inject.Inject;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.Function;
 
 public class ProjectSetup {
+    private static final String LOADERS_PROPERTY = "multisource.loaders";
+
     private final String root;
     private final Map<String, LoaderSet> loaders = new HashMap<>();
+    private final Set<String> identityMapped = new HashSet<>();
+    private final Map<String, String> classpathSources = new HashMap<>();
+    private final Set<String> environments;
+    private LoaderGraph loaderGraph;
+    private Set<String> selectedLoaders;
     private final List<Action<RepositoryHandler>> repositories = new ArrayList<>();
     private final transient Context context;
 
     private static final class Context {
         private final List<Action<Project>> rootActions = new ArrayList<>();
         private final Settings settings;
+        private final ProjectActions actions;
         private final Map<String, SourceSetup> sources = new HashMap<>();
         private final List<Action<DependenciesSetup>> each = new ArrayList<>();
         private final Map<String, List<Action<DependenciesSetup>>> eachBySet = new HashMap<>();
 
-        private Context(Settings settings) {
+        private Context(Settings settings, ProjectActions actions) {
             this.settings = settings;
+            this.actions = actions;
         }
     }
 
     @Inject
-    ProjectSetup(String root, Settings settings) {
+    ProjectSetup(String root, Settings settings, ProjectActions actions, Set<String> environments) {
         this.root = root;
-        this.context = new Context(settings);
-        setupCallback(root, settings, context.rootActions);
+        this.environments = Set.copyOf(environments);
+        this.context = new Context(settings, actions);
+        actions.register(root, p -> context.rootActions.forEach(a -> a.execute(p)));
         repositories.add(Constants::neoMaven);
         context.rootActions.add(p -> {
-            p.getPluginManager().apply(LoomRepositoryPlugin.class);
+            LoomSetup.applyRepositories(p);
         });
         context.rootActions.add(p -> {
             p.getPlugins().apply("java-library");
@@ -69,15 +78,112 @@ private Context(Settings settings) {
         });
     }
 
-    @SuppressWarnings("UnstableApiUsage")
-    private static void setupCallback(String root, Settings settings, List<Action<Project>> rootActions) {
-        settings.getGradle().getLifecycle().beforeProject(p -> {
-            if (p.getPath().equals(root)) {
-                rootActions.forEach(a -> a.execute(p));
+    /**
+     * Called once the {@code multisource.of} block has been evaluated, at which point every loader has been declared.
+     */
+    void finish() {
+        loaderGraph = LoaderGraph.of(loaders);
+        identityMapped.forEach(name -> {
+            if (!context.sources.containsKey(name)) {
+                throw new IllegalArgumentException("Loader " + name + " is declared as identity-mapped, but is not a loader with its own subproject");
+            }
+        });
+        classpathSources.forEach((name, source) -> {
+            if (isEnvironment(source)) {
+                if (!environments.contains(source)) {
+                    throw new IllegalArgumentException("Common source set " + name + " takes its classpath from " + source + ", which is not an environment declared before this multisource.of block");
+                }
+            } else if (!context.sources.containsKey(source)) {
+                throw new IllegalArgumentException("Common source set " + name + " takes its classpath from " + source + ", which is not a loader with its own subproject");
+            }
+        });
+        selectedLoaders = selectLoaders();
+        context.sources.forEach((name, setup) -> {
+            if (selectedLoaders.contains(name)) {
+                setup.register();
             }
         });
     }
 
+    /**
+     * Reads the loader names listed in the {@value #LOADERS_PROPERTY} property.
+     * @return the listed names, or {@code null} if the property is not set or lists no names
+     */
+    static @Nullable Set<String> requestedLoaders(Settings settings) {
+        var property = settings.getProviders().gradleProperty(LOADERS_PROPERTY);
+        if (!property.isPresent()) {
+            return null;
+        }
+        Set<String> names = new HashSet<>();
+        for (String name : property.get().split(",")) {
+            name = name.trim();
+            if (!name.isEmpty()) {
+                names.add(name);
+            }
+        }
+        return names.isEmpty() ? null : Set.copyOf(names);
+    }
+
+    /**
+     * Fails if a loader listed in the {@value #LOADERS_PROPERTY} property is not declared by any root.
+     * @param declared the loaders declared by every {@code multisource.of} block
+     */
+    static void checkRequestedLoaders(Settings settings, Set<String> declared) {
+        var requested = requestedLoaders(settings);
+        if (requested == null) {
+            return;
+        }
+        for (String name : requested) {
+            if (!declared.contains(name)) {
+                throw new IllegalArgumentException("Loader " + name + " is listed in " + LOADERS_PROPERTY + ", but is not declared by any multisource.of block");
+            }
+        }
+    }
+
+    Set<String> loaderNames() {
+        return Set.copyOf(loaders.keySet());
+    }
+
+    /**
+     * Finds the loaders to configure fully. If the {@value #LOADERS_PROPERTY} property lists loader names, only those
+     * loaders and the loaders they inherit from get their subprojects; names not declared for this root are ignored
+     * here, and checked against every root once settings are evaluated. Otherwise, every loader is selected.
+     */
+    private Set<String> selectLoaders() {
+        var requested = requestedLoaders(context.settings);
+        if (requested == null) {
+            return Set.copyOf(loaders.keySet());
+        }
+        Set<String> selected = new HashSet<>();
+        for (String name : requested) {
+            if (loaders.containsKey(name)) {
+                selected.add(name);
+                selected.addAll(loaderGraph.ancestors(name));
+            }
+        }
+        for (String name : Set.copyOf(selected)) {
+            var source = classpathSources.get(name);
+            if (source != null && !isEnvironment(source)) {
+                selected.add(source);
+                selected.addAll(loaderGraph.ancestors(source));
+            }
+        }
+        return Set.copyOf(selected);
+    }
+
+    /**
+     * Runs an action on the root only if the loader is selected. Wiring that goes through the loader's subproject must
+     * use this, as unselected loaders have no subproject; the source set and configurations that a root build script
+     * refers to are set up for every loader.
+     */
+    private Action<Project> forLoader(String name, Action<Project> action) {
+        return p -> {
+            if (selectedLoaders.contains(name)) {
+                action.execute(p);
+            }
+        };
+    }
+
     public void configureEach(@ClosureParams(value = SimpleType.class, options = "dev.lukebemish.multiloader.DependenciesSetup")
                               @DelegatesTo(DependenciesSetup.class) Closure<?> closure) {
         configureEach(actionOf(closure));
@@ -97,6 +203,15 @@ public void repositories(Action<RepositoryHandler> repositories) {
         this.repositories.add(repositories);
     }
 
+    /**
+     * Declares that a loader runs with the same mappings as the development environment, such as NeoForge with official
+     * Mojang mappings. The jars of such a loader are not sent through its subproject to be remapped; its bundled jars
+     * are made directly from the development jars instead.
+     */
+    public void identityMapped(String name) {
+        identityMapped.add(name);
+    }
+
     public void common(String name, List<String> parents,
                        @ClosureParams(value = SimpleType.class, options = "dev.lukebemish.multiloader.DependenciesSetup")
                        @DelegatesTo(DependenciesSetup.class)
@@ -119,7 +234,7 @@ public void common(String name, Action<DependenciesSetup> dependencies) {
 
     @SuppressWarnings("UnstableApiUsage")
     public void common(String name, List<String> parents, Action<DependenciesSetup> dependencies) {
-        SourceSetup setup = context.sources.computeIfAbsent(name, s -> new SourceSetup(root, name, context.settings));
+        SourceSetup setup = context.sources.computeIfAbsent(name, s -> new SourceSetup(root, name, context.settings, context.actions));
         setup.doAction(p -> repositories.forEach(a -> a.execute(p.getRepositories())));
         setup.setPlatform("fabric");
         setup.doAction(ProjectSetup::exposeClasspathConfigurations);
@@ -143,22 +258,48 @@ public void common(String name, List<String> parents, Action<DependenciesSetup>
         parents.forEach(loader::parent);
 
         setup.doAction(p -> {
-            var loom = p.getExtensions().getByType(LoomGradleExtensionAPI.class);
-            loom.getRunConfigs().configureEach(run -> run.setIdeConfigGenerated(false));
+            LoomSetup.disableRunConfigs(p);
+            LoomSetup.exposeMinecraftClasspath(p, name);
         });
 
+        setupCommonSourceSet(name, p -> p.getDependencies().project(Map.of("path", makeKey(root, name))));
+    }
+
+    /**
+     * Sets up a common source set without a subproject of its own. Instead of setting up Minecraft separately, the
+     * source set is compiled against the mapped Minecraft jar and Minecraft libraries of another loader, which must
+     * already be set up. Nothing else on that loader's classpath, such as its loader or mod dependencies, is visible to
+     * the common source set, so code that is not common fails to compile. Useful when a full loom setup for the common
+     * source set would only provision Minecraft a second time. NeoForge patches Minecraft itself, so a fabric loader
+     * should be preferred as the source.
+     * @param classpathFrom the loader to take the Minecraft classpath from, or the path of an environment declared with
+     *                      {@link MultisourceSettingsExtension#environment} before this {@code multisource.of} block
+     */
+    public void commonFrom(String name, List<String> parents, String classpathFrom) {
+        var loader = loaders.computeIfAbsent(name, LoaderSet::new);
+        parents.forEach(loader::parent);
+        classpathSources.put(name, classpathFrom);
+
+        setupCommonSourceSet(name, p -> isEnvironment(classpathFrom) ?
+            variantDependency(p, classpathFrom, classpathFrom, Constants.MINECRAFT_CLASSPATH_EXPOSED) :
+            variantDependency(p, makeKey(root, classpathFrom), classpathFrom, Constants.MINECRAFT_CLASSPATH_EXPOSED)
+        );
+    }
+
+    private void setupCommonSourceSet(String name, Function<Project, Dependency> classpath) {
         context.rootActions.add(p -> {
             var set = getOrCreateSourceSet(name, p);
 
-            var compileOnly = Constants.forFeature(name, "compileOnly");
-            p.getDependencies().add(compileOnly, p.getDependencies().project(Map.of("path", makeKey(root, name))));
-
             exposeModClasses(name, p, set);
 
-            setupParents(p, name, loaders);
+            setupParents(p, name, loaderGraph);
 
             setupCoreConfigurations(p, set);
         });
+        context.rootActions.add(forLoader(name, p -> {
+            var compileOnly = Constants.forFeature(name, "compileOnly");
+            p.getDependencies().add(compileOnly, classpath.apply(p));
+        }));
     }
 
     public void neoforge(String name, List<String> parents,
@@ -171,7 +312,7 @@ public void neoforge(String name, List<String> parents,
 
     @SuppressWarnings("UnstableApiUsage")
     public void neoforge(String name, List<String> parents, Action<NeoforgeDependenciesSetup> dependencies) {
-        SourceSetup setup = context.sources.computeIfAbsent(name, s -> new SourceSetup(root, name, context.settings));
+        SourceSetup setup = context.sources.computeIfAbsent(name, s -> new SourceSetup(root, name, context.settings, context.actions));
         setup.doAction(p -> repositories.forEach(a -> a.execute(p.getRepositories())));
         setup.setPlatform("neoforge");
         setup.doAction(ProjectSetup::exposeClasspathConfigurations);
@@ -179,9 +320,9 @@ public void neoforge(String name, List<String> parents, Action<NeoforgeDependenc
         List<Action<DependenciesSetup>> future = new ArrayList<>();
         context.eachBySet.put(name, future);
         setup.doAction(p -> {
-            var loom = p.getExtensions().getByType(LoomGradleExtensionAPI.class);
-            setupSubprojectConsumer(p, name, root, loom);
-            setupSubprojectRemappingConsumer(p, name, root, loom);
+            LoomSetup.setupSubprojectConsumer(p, name, root);
+            LoomSetup.setupSubprojectRemappingConsumer(p, name, root, !identityMapped.contains(name));
+            LoomSetup.exposeMinecraftClasspath(p, name);
         });
         setup.doAction(p -> {
             var dependenciesSetup = p.getObjects().newInstance(NeoforgeDependenciesSetup.class, p);
@@ -202,34 +343,37 @@ public void neoforge(String name, List<String> parents, Action<NeoforgeDependenc
 
         context.rootActions.add(p -> {
             var set = getOrCreateSourceSet(name, p);
+            exposeModClasses(name, p, set);
+
+            setupParents(p, name, loaderGraph);
+
+            setupCoreConfigurations(p, set);
+            setupIncludeConfiguration(p, name, set);
+        });
+        context.rootActions.add(forLoader(name, p -> {
+            var set = getOrCreateSourceSet(name, p);
 
             var compileOnly = Constants.forFeature(name, "compileOnly");
             p.getDependencies().add(compileOnly, p.getDependencies().project(Map.of("path", makeKey(root, name))));
-            exposeModClasses(name, p, set);
 
             exposeRuntimeToSubproject(name, p);
 
-            setupParents(p, name, loaders);
-
-            setupCoreConfigurations(p, set);
-            setupIncludeConfiguration(p, set);
-
             pullSubprojectRemappedJars(name, p, set);
             p.getTasks().named(set.getTaskName("remap", "jar"), JarInJar.class, t -> {
                 t.getMakeNeoMetadata().set(true);
             });
-        });
+        }));
     }
 
     @SuppressWarnings("UnstableApiUsage")
-    public void fabric(String name, List<String> parents, Action<DependenciesSetup> dependencies) {SourceSetup setup = context.sources.computeIfAbsent(name, s -> new SourceSetup(root, name, context.settings));
+    public void fabric(String name, List<String> parents, Action<DependenciesSetup> dependencies) {SourceSetup setup = context.sources.computeIfAbsent(name, s -> new SourceSetup(root, name, context.settings, context.actions));
         setup.doAction(p -> repositories.forEach(a -> a.execute(p.getRepositories())));
         setup.setPlatform("fabric");
         setup.doAction(ProjectSetup::exposeClasspathConfigurations);
         setup.doAction(p -> {
-            var loom = p.getExtensions().getByType(LoomGradleExtensionAPI.class);
-            setupSubprojectConsumer(p, name, root, loom);
-            setupSubprojectRemappingConsumer(p, name, root, loom);
+            LoomSetup.setupSubprojectConsumer(p, name, root);
+            LoomSetup.setupSubprojectRemappingConsumer(p, name, root, !identityMapped.contains(name));
+            LoomSetup.exposeMinecraftClasspath(p, name);
         });
         List<Action<DependenciesSetup>> already = List.copyOf(context.each);
         List<Action<DependenciesSetup>> future = new ArrayList<>();
@@ -252,23 +396,26 @@ public void neoforge(String name, List<String> parents, Action<NeoforgeDependenc
 
         context.rootActions.add(p -> {
             var set = getOrCreateSourceSet(name, p);
+            exposeModClasses(name, p, set);
+
+            setupParents(p, name, loaderGraph);
+
+            setupCoreConfigurations(p, set);
+            setupRemapConfigurations(p, name, set);
+        });
+        context.rootActions.add(forLoader(name, p -> {
+            var set = getOrCreateSourceSet(name, p);
 
             var compileOnly = Constants.forFeature(name, "compileOnly");
             p.getDependencies().add(compileOnly, p.getDependencies().project(Map.of("path", makeKey(root, name))));
-            exposeModClasses(name, p, set);
 
             exposeRuntimeToSubproject(name, p);
 
-            setupParents(p, name, loaders);
-
-            setupCoreConfigurations(p, set);
-            setupRemapConfigurations(p, set);
-
             pullSubprojectRemappedJars(name, p, set);
             p.getTasks().named(set.getTaskName("remap", "jar"), JarInJar.class, t -> {
                 t.getMakeFabricJsons().set(true);
             });
-        });
+        }));
     }
 
     private void pullSubprojectRemappedJars(String name, Project p, SourceSet set) {
@@ -277,10 +424,12 @@ private void pullSubprojectRemappedJars(String name, Project p, SourceSet set) {
         var outputSourcesJar = p.getConfigurations().maybeCreate(Constants.forFeature(name, Constants.OUTPUT_SOURCES_JAR));
         outputSourcesJar.setCanBeResolved(false);
         outputSourcesJar.setCanBeConsumed(true);
+        exposeVariant(p, outputSourcesJar, name, Constants.OUTPUT_SOURCES_JAR);
 
         var outputJar = p.getConfigurations().maybeCreate(Constants.forFeature(name, Constants.OUTPUT_JAR));
         outputJar.setCanBeResolved(false);
         outputJar.setCanBeConsumed(true);
+        exposeVariant(p, outputJar, name, Constants.OUTPUT_JAR);
 
         var remapJar = p.getTasks().register(set.getTaskName("remap", "jar"), JarInJar.class);
         var remapSourcesJar = p.getTasks().register(set.getTaskName("remap", "sourcesJar"), CopyArchiveFileTask.class);
@@ -294,26 +443,21 @@ private void pullSubprojectRemappedJars(String name, Project p, SourceSet set) {
                     t.getArchiveClassifier().set(name + "-dev");
                     t.getDestinationDirectory().set(it.getLayout().getBuildDirectory().dir("devlibs"));
                 });
-                outputJar.getOutgoing().artifact(jar.get().getArchiveFile());
-
-                var outputJarConsumer = it.getConfigurations().maybeCreate(Constants.forFeature(name, Constants.OUTPUT_JAR + "Consumer"));
-                outputJarConsumer.setCanBeResolved(true);
-                outputJarConsumer.setCanBeConsumed(false);
-                outputJarConsumer.setTransitive(false);
-                it.getDependencies().add(outputJarConsumer.getName(), it.getDependencies().project(Map.of("path", makeKey(root, name), "configuration", Constants.OUTPUT_JAR + "Exposed")));
+                outputJar.getOutgoing().artifact(jar.flatMap(Jar::getArchiveFile));
 
+                Object remappedJar = identityMapped.contains(name) ? jar.flatMap(Jar::getArchiveFile) : remappedBySubproject(it, name, Constants.OUTPUT_JAR);
                 remapJar.configure(t -> {
-                    t.dependsOn(outputJarConsumer);
-                    t.getInputFiles().from(outputJarConsumer);
+                    t.getInputFiles().from(remappedJar);
                     t.configuration(include);
                     t.getArchiveClassifier().set(name);
                 });
-                it.getTasks().named("assemble", t -> t.dependsOn(remapJar.get()));
+                it.getTasks().named("assemble", t -> t.dependsOn(remapJar));
 
                 for (var configurationName : List.of(Constants.RUNTIME_ELEMENTS, Constants.API_ELEMENTS)) {
-                    var config = it.getConfigurations().getByName(Constants.forFeature(name, configurationName));
-                    config.getOutgoing().getArtifacts().clear();
-                    config.getOutgoing().artifact(remapJar.get().getArchiveFile());
+                    it.getConfigurations().named(Constants.forFeature(name, configurationName), config -> {
+                        config.getOutgoing().getArtifacts().clear();
+                        config.getOutgoing().artifact(remapJar.flatMap(JarInJar::getArchiveFile));
+                    });
                 }
             }
 
@@ -323,28 +467,35 @@ private void pullSubprojectRemappedJars(String name, Project p, SourceSet set) {
                     t.getDestinationDirectory().set(it.getLayout().getBuildDirectory().dir("devlibs"));
                 });
 
-                outputSourcesJar.getOutgoing().artifact(sourcesJar.get().getArchiveFile());
-
-                var outputSourcesJarConsumer = it.getConfigurations().maybeCreate(Constants.forFeature(name, Constants.OUTPUT_SOURCES_JAR + "Consumer"));
-                outputSourcesJarConsumer.setCanBeResolved(true);
-                outputSourcesJarConsumer.setCanBeConsumed(false);
-                outputSourcesJarConsumer.setTransitive(false);
-                it.getDependencies().add(outputSourcesJarConsumer.getName(), it.getDependencies().project(Map.of("path", makeKey(root, name), "configuration", Constants.OUTPUT_SOURCES_JAR + "Exposed")));
+                outputSourcesJar.getOutgoing().artifact(sourcesJar.flatMap(Jar::getArchiveFile));
 
+                Object remappedSourcesJar = identityMapped.contains(name) ? sourcesJar.flatMap(Jar::getArchiveFile) : remappedBySubproject(it, name, Constants.OUTPUT_SOURCES_JAR);
                 remapSourcesJar.configure(t -> {
-                    t.dependsOn(outputSourcesJarConsumer);
-                    t.getInputFiles().from(outputSourcesJarConsumer);
+                    t.getInputFiles().from(remappedSourcesJar);
                     t.getArchiveClassifier().set(name +"-sources");
                 });
-                it.getTasks().named("assemble", t -> t.dependsOn(remapSourcesJar.get()));
+                it.getTasks().named("assemble", t -> t.dependsOn(remapSourcesJar));
 
-                var config = it.getConfigurations().getByName(Constants.forFeature(name, Constants.SOURCES_ELEMENTS));
-                config.getOutgoing().getArtifacts().clear();
-                config.getOutgoing().artifact(remapSourcesJar.get().getArchiveFile());
+                it.getConfigurations().named(Constants.forFeature(name, Constants.SOURCES_ELEMENTS), config -> {
+                    config.getOutgoing().getArtifacts().clear();
+                    config.getOutgoing().artifact(remapSourcesJar.flatMap(CopyArchiveFileTask::getArchiveFile));
+                });
             }
         });
     }
 
+    /**
+     * Creates a configuration resolving a jar after it has been remapped by the loader's subproject.
+     */
+    private Configuration remappedBySubproject(Project p, String name, String output) {
+        var consumer = p.getConfigurations().maybeCreate(Constants.forFeature(name, output + "Consumer"));
+        consumer.setCanBeResolved(true);
+        consumer.setCanBeConsumed(false);
+        consumer.setTransitive(false);
+        p.getDependencies().add(consumer.getName(), variantDependency(p, makeKey(root, name), name, output + "Exposed"));
+        return consumer;
+    }
+
     private static @NotNull SourceSet getOrCreateSourceSet(String name, Project p) {
         var java = p.getExtensions().getByType(JavaPluginExtension.class);
         var sourceSets = java.getSourceSets();
@@ -363,24 +514,25 @@ private static void exposeModClasses(String name, Project p, SourceSet set) {
         var runtimeModClasses = p.getConfigurations().maybeCreate(Constants.forFeature(name, Constants.RUNTIME_MOD_CLASSES));
         runtimeModClasses.setCanBeConsumed(true);
         runtimeModClasses.setCanBeResolved(false);
+        exposeVariant(p, runtimeModClasses, name, Constants.RUNTIME_MOD_CLASSES);
         runtimeModClasses.getOutgoing().artifacts(p.provider(() -> set.getOutput().getClassesDirs()), artifact ->
-            artifact.builtBy(p.getTasks().getByName(set.getClassesTaskName()))
+            artifact.builtBy(p.getTasks().named(set.getClassesTaskName()))
         );
         runtimeModClasses.getOutgoing().artifact(p.provider(() -> set.getOutput().getResourcesDir()), artifact ->
-            artifact.builtBy(p.getTasks().getByName(set.getProcessResourcesTaskName()))
+            artifact.builtBy(p.getTasks().named(set.getProcessResourcesTaskName()))
         );
     }
 
-    private static void setupParents(Project p, String name, Map<String, LoaderSet> loaders) {
+    private static void setupParents(Project p, String name, LoaderGraph loaderGraph) {
         p.afterEvaluate(it -> {
             var sourcesPresent = it.getTasks().getNames().contains(Constants.forFeature(name, "sourcesJar"));
             var javadocPresent = it.getTasks().getNames().contains(Constants.forFeature(name, "javadoc"));
             var jarPresent = it.getTasks().getNames().contains(Constants.forFeature(name, "jar"));
 
-            Set<String> parents = getParents(name, loaders);
+            Set<String> parents = loaderGraph.ancestors(name);
 
             var runtimeModClasses = p.getConfigurations().maybeCreate(Constants.forFeature(name, Constants.RUNTIME_MOD_CLASSES));
-            for (String parent : loaders.get(name).getParents()) {
+            for (String parent : loaderGraph.parents(name)) {
                 // We only need direct parents here
                 runtimeModClasses.extendsFrom(p.getConfigurations().getByName(Constants.forFeature(parent, Constants.RUNTIME_MOD_CLASSES)));
             }
@@ -395,8 +547,8 @@ private static void setupParents(Project p, String name, Map<String, LoaderSet>
                     for (String parent : parents) {
                         SourceSet sourceSet = it.getExtensions().getByType(JavaPluginExtension.class).getSourceSets().getByName(parent);
                         t.from(sourceSet.getOutput());
-                        t.dependsOn(it.getTasks().getByName(sourceSet.getClassesTaskName()));
-                        t.dependsOn(it.getTasks().getByName(sourceSet.getProcessResourcesTaskName()));
+                        t.dependsOn(it.getTasks().named(sourceSet.getClassesTaskName()));
+                        t.dependsOn(it.getTasks().named(sourceSet.getProcessResourcesTaskName()));
                     }
                 });
             }
@@ -421,31 +573,42 @@ private static void setupParents(Project p, String name, Map<String, LoaderSet>
         });
     }
 
-    private static @NotNull Set<String> getParents(String name, Map<String, LoaderSet> loaders) {
-        Set<String> parents = new HashSet<>();
-        Set<String> visited = new LinkedHashSet<>();
-        visited.add(name);
-        traverseLoaders(loaders.get(name), loaders, parents, visited);
-        return parents;
-    }
-
-    private static void traverseLoaders(LoaderSet loaderSet, Map<String, LoaderSet> loaders, Set<String> parents, Set<String> visited) {
-        for (String parent : loaderSet.getParents()) {
-            if (visited.contains(parent)) {
-                throw new IllegalArgumentException("Circular dependency detected: " + String.join(" -> ", visited) + " -> " + parent);
-            }
-            parents.add(parent);
-            var newVisited = new LinkedHashSet<>(visited);
-            newVisited.add(parent);
-            traverseLoaders(loaders.get(parent), loaders, parents, newVisited);
-        }
-    }
-
     private static void exposeRuntimeToSubproject(String name, Project p) {
         Configuration runtimeClasspathExposed = p.getConfigurations().maybeCreate(Constants.forFeature(name, Constants.RUNTIME_CLASSPATH_EXPOSED));
         runtimeClasspathExposed.extendsFrom(p.getConfigurations().getByName(Constants.forFeature(name, Constants.RUNTIME_CLASSPATH)));
         runtimeClasspathExposed.setCanBeConsumed(true);
         runtimeClasspathExposed.setCanBeResolved(false);
+        exposeVariant(p, runtimeClasspathExposed, name, Constants.RUNTIME_CLASSPATH_EXPOSED);
+    }
+
+    /**
+     * Marks a configuration as a variant that projects on the other side of a loader can select by attributes, so that
+     * neither project needs to know how the other names its configurations.
+     */
+    static void exposeVariant(Project p, Configuration configuration, String loader, String role) {
+        configuration.attributes(attributes -> {
+            attributes.attribute(Category.CATEGORY_ATTRIBUTE, p.getObjects().named(Category.class, Constants.MULTISOURCE_CATEGORY));
+            attributes.attribute(Constants.LOADER_ATTRIBUTE, loader);
+            attributes.attribute(Constants.ROLE_ATTRIBUTE, role);
+        });
+    }
+
+    /**
+     * Creates a dependency on a variant exposed by {@link #exposeVariant}. The attributes are set on the dependency
+     * itself, so they only affect how that project is selected and not any of its transitive dependencies.
+     */
+    static ModuleDependency variantDependency(Project p, Object path, String loader, String role) {
+        var dependency = (ModuleDependency) p.getDependencies().project(Map.of("path", path));
+        dependency.attributes(attributes -> {
+            attributes.attribute(Category.CATEGORY_ATTRIBUTE, p.getObjects().named(Category.class, Constants.MULTISOURCE_CATEGORY));
+            attributes.attribute(Constants.LOADER_ATTRIBUTE, loader);
+            attributes.attribute(Constants.ROLE_ATTRIBUTE, role);
+        });
+        return dependency;
+    }
+
+    private static boolean isEnvironment(String classpathFrom) {
+        return classpathFrom.startsWith(":");
     }
 
     private Object makeKey(String root, String name) {
@@ -455,69 +618,7 @@ private Object makeKey(String root, String name) {
         return root + ":" + name;
     }
 
-    private static void setupSubprojectRemappingConsumer(Project p, String name, String root, LoomGradleExtensionAPI loom) {
-        p.getDependencies().add("modCompileOnly", p.getDependencies().project(Map.of("path", root, "configuration", Constants.forFeature(name, Constants.TO_REMAP_COMPILE_CLASSPATH))));
-        p.getDependencies().add("modRuntimeOnly", p.getDependencies().project(Map.of("path", root, "configuration", Constants.forFeature(name, Constants.TO_REMAP_RUNTIME_CLASSPATH))));
-
-        var outputJar = p.getConfigurations().maybeCreate(Constants.OUTPUT_JAR);
-        var outputSourcesJar = p.getConfigurations().maybeCreate(Constants.OUTPUT_SOURCES_JAR);
-
-        outputJar.setCanBeResolved(true);
-        outputJar.setCanBeConsumed(false);
-        outputJar.setTransitive(false);
-        outputSourcesJar.setCanBeResolved(true);
-        outputSourcesJar.setCanBeConsumed(false);
-        outputSourcesJar.setTransitive(false);
-
-        p.getDependencies().add(Constants.OUTPUT_JAR, p.getDependencies().project(Map.of("path", root, "configuration", Constants.forFeature(name, Constants.OUTPUT_JAR))));
-        p.getDependencies().add(Constants.OUTPUT_SOURCES_JAR, p.getDependencies().project(Map.of("path", root, "configuration", Constants.forFeature(name, Constants.OUTPUT_SOURCES_JAR))));
-
-        var remapJar = p.getTasks().register("remapOutputJar", RemapJarTask.class, t -> {
-            t.dependsOn(outputJar);
-            t.getArchiveClassifier().set("output");
-            t.getInputFile().fileProvider(p.provider(() -> outputJar.isEmpty() ? null : outputJar.getSingleFile()));
-            t.onlyIf(it -> !outputJar.isEmpty());
-        });
-
-        var remapSourcesJar = p.getTasks().register("remapOutputSourcesJar", RemapSourcesJarTask.class);
-        remapSourcesJar.configure(t -> {
-            t.dependsOn(outputSourcesJar);
-            t.getArchiveClassifier().set("output-sources");
-            t.getInputFile().fileProvider(p.provider(() -> outputSourcesJar.isEmpty() ? null : outputSourcesJar.getSingleFile()));
-            t.onlyIf(it -> !outputSourcesJar.isEmpty());
-        });
-
-        var outputJarExposed = p.getConfigurations().maybeCreate(Constants.OUTPUT_JAR + "Exposed");
-        var outputSourcesJarExposed = p.getConfigurations().maybeCreate(Constants.OUTPUT_SOURCES_JAR + "Exposed");
-
-        outputJarExposed.getOutgoing().artifact(remapJar.get().getArchiveFile());
-        outputSourcesJarExposed.getOutgoing().artifact(remapSourcesJar.get().getArchiveFile());
-    }
-
-    private static void setupSubprojectConsumer(Project p, String name, String root, LoomGradleExtensionAPI loom) {
-        SourceSet runs = p.getExtensions().getByType(JavaPluginExtension.class).getSourceSets().maybeCreate("runs");
-        Configuration runtimeModClasses = p.getConfigurations().maybeCreate(Constants.RUNTIME_MOD_CLASSES);
-        p.getConfigurations().getByName("runsRuntimeClasspath").extendsFrom(p.getConfigurations().getByName(Constants.RUNTIME_CLASSPATH));
-        p.getConfigurations().getByName("runsImplementation").extendsFrom(runtimeModClasses);
-
-        loom.mods(mods -> {
-            var mod = mods.maybeCreate("main");
-            mod.configuration(runtimeModClasses);
-            mod.sourceSet(runs);
-        });
-        loom.getRunConfigs().configureEach(run -> {
-            run.setIdeConfigGenerated(true);
-            run.source(runs);
-        });
-        loom.createRemapConfigurations(runs);
-
-        p.getDependencies().add("runsRuntimeOnly", p.getDependencies().project(Map.of("path", root, "configuration", Constants.forFeature(name, Constants.RUNTIME_CLASSPATH_EXPOSED))));
-        var modClassesDep = p.getDependencies().project(Map.of("path", root, "configuration", Constants.forFeature(name, Constants.RUNTIME_MOD_CLASSES)));
-        ((ModuleDependency) modClassesDep).setTransitive(false);
-        p.getDependencies().add(runtimeModClasses.getName(), modClassesDep);
-    }
-
-    private static void exposeClasspathConfigurations(Project p) {
+    static void exposeClasspathConfigurations(Project p) {
         var configurations = p.getConfigurations();
 
         var runtimeElements = configurations.maybeCreate(Constants.RUNTIME_ELEMENTS);
@@ -573,7 +674,7 @@ private static void setupCoreConfigurations(Project p, SourceSet sourceSet) {
         localRuntime.setCanBeResolved(false);
     }
 
-    private static void setupIncludeConfiguration(Project p, SourceSet sourceSet) {
+    private static void setupIncludeConfiguration(Project p, String name, SourceSet sourceSet) {
         var include = p.getConfigurations().maybeCreate(sourceSet.getTaskName(null, Constants.INCLUDE));
         include.setCanBeResolved(true);
         include.setCanBeConsumed(false);
@@ -581,18 +682,21 @@ private static void setupIncludeConfiguration(Project p, SourceSet sourceSet) {
         var toRemapRuntime = p.getConfigurations().maybeCreate(sourceSet.getTaskName(null, Constants.TO_REMAP_RUNTIME_CLASSPATH));
         toRemapRuntime.setCanBeResolved(false);
         toRemapRuntime.setCanBeConsumed(true);
+        exposeVariant(p, toRemapRuntime, name, Constants.TO_REMAP_RUNTIME_CLASSPATH);
         var toRemapCompile = p.getConfigurations().maybeCreate(sourceSet.getTaskName(null, Constants.TO_REMAP_COMPILE_CLASSPATH));
         toRemapCompile.setCanBeResolved(false);
         toRemapCompile.setCanBeConsumed(true);
+        exposeVariant(p, toRemapCompile, name, Constants.TO_REMAP_COMPILE_CLASSPATH);
     }
 
-    private static void setupRemapConfigurations(Project p, SourceSet sourceSet) {
-        setupIncludeConfiguration(p, sourceSet);
+    private static void setupRemapConfigurations(Project p, String name, SourceSet sourceSet) {
+        setupIncludeConfiguration(p, name, sourceSet);
         var toRemapRuntime = p.getConfigurations().getByName(sourceSet.getTaskName(null, Constants.TO_REMAP_RUNTIME_CLASSPATH));
         var toRemapCompile = p.getConfigurations().getByName(sourceSet.getTaskName(null, Constants.TO_REMAP_COMPILE_CLASSPATH));
+        Map<RemapToCreate, Configuration> configurations = new LinkedHashMap<>();
         for (var target : RemapToCreate.TARGETS) {
-            var name = sourceSet.getTaskName("mod", target.target());
-            var conf = p.getConfigurations().maybeCreate(name);
+            var configurationName = sourceSet.getTaskName("mod", target.target());
+            var conf = p.getConfigurations().maybeCreate(configurationName);
             conf.setCanBeResolved(false);
             conf.setCanBeConsumed(false);
             if (target.compile) {
@@ -601,41 +705,55 @@ private static void setupRemapConfigurations(Project p, SourceSet sourceSet) {
             if (target.runtime) {
                 toRemapRuntime.extendsFrom(conf);
             }
-            p.afterEvaluate(it -> {
-                if (
-                    it.getConfigurations().getNames().contains(sourceSet.getTaskName(null, Constants.RUNTIME_ELEMENTS))
-                    && it.getConfigurations().getNames().contains(sourceSet.getTaskName(null, Constants.API_ELEMENTS))
-                ) {
-                    var runtimeElements = p.getConfigurations().named(sourceSet.getTaskName(null, Constants.RUNTIME_ELEMENTS));
-                    var apiElements = p.getConfigurations().named(sourceSet.getTaskName(null, Constants.API_ELEMENTS));
-                    switch (target.publishingMode) {
-                        case NONE -> {
-                        }
-                        case COMPILE_ONLY -> {
-                            apiElements.configure(d -> d.extendsFrom(conf));
-                        }
-                        case RUNTIME_ONLY -> {
-                            runtimeElements.configure(d -> d.extendsFrom(conf));
-                        }
-                        case COMPILE_AND_RUNTIME -> {
-                            apiElements.configure(d -> d.extendsFrom(conf));
-                            runtimeElements.configure(d -> d.extendsFrom(conf));
-                        }
+            configurations.put(target, conf);
+        }
+        p.afterEvaluate(it -> {
+            if (
+                !it.getConfigurations().getNames().contains(sourceSet.getTaskName(null, Constants.RUNTIME_ELEMENTS))
+                || !it.getConfigurations().getNames().contains(sourceSet.getTaskName(null, Constants.API_ELEMENTS))
+            ) {
+                return;
+            }
+            var runtimeElements = p.getConfigurations().named(sourceSet.getTaskName(null, Constants.RUNTIME_ELEMENTS));
+            var apiElements = p.getConfigurations().named(sourceSet.getTaskName(null, Constants.API_ELEMENTS));
+            configurations.forEach((target, conf) -> {
+                switch (target.publishingMode) {
+                    case NONE -> {
+                    }
+                    case COMPILE_ONLY -> {
+                        apiElements.configure(d -> d.extendsFrom(conf));
+                    }
+                    case RUNTIME_ONLY -> {
+                        runtimeElements.configure(d -> d.extendsFrom(conf));
+                    }
+                    case COMPILE_AND_RUNTIME -> {
+                        apiElements.configure(d -> d.extendsFrom(conf));
+                        runtimeElements.configure(d -> d.extendsFrom(conf));
                     }
                 }
             });
-        }
+        });
+    }
+
+    /**
+     * Mirrors the publishing modes of loom's remap configurations.
+     */
+    private enum PublishingMode {
+        NONE,
+        COMPILE_ONLY,
+        RUNTIME_ONLY,
+        COMPILE_AND_RUNTIME
     }
 
-    private record RemapToCreate(String target, boolean compile, boolean runtime, RemapConfigurationSettings.PublishingMode publishingMode) {
+    private record RemapToCreate(String target, boolean compile, boolean runtime, PublishingMode publishingMode) {
         private static final List<RemapToCreate> TARGETS = List.of(
-            new RemapToCreate(Constants.LOCAL_IMPLEMENTATION, true, true, RemapConfigurationSettings.PublishingMode.NONE),
-            new RemapToCreate(Constants.LOCAL_RUNTIME, false, true, RemapConfigurationSettings.PublishingMode.NONE),
-            new RemapToCreate(Constants.API, true, true, RemapConfigurationSettings.PublishingMode.COMPILE_AND_RUNTIME),
-            new RemapToCreate(Constants.IMPLEMENTATION, true, true, RemapConfigurationSettings.PublishingMode.RUNTIME_ONLY),
-            new RemapToCreate(Constants.COMPILE_ONLY, true, false, RemapConfigurationSettings.PublishingMode.NONE),
-            new RemapToCreate(Constants.COMPILE_ONLY_API, true, false, RemapConfigurationSettings.PublishingMode.COMPILE_ONLY),
-            new RemapToCreate(Constants.RUNTIME_ONLY, false, true, RemapConfigurationSettings.PublishingMode.RUNTIME_ONLY)
+            new RemapToCreate(Constants.LOCAL_IMPLEMENTATION, true, true, PublishingMode.NONE),
+            new RemapToCreate(Constants.LOCAL_RUNTIME, false, true, PublishingMode.NONE),
+            new RemapToCreate(Constants.API, true, true, PublishingMode.COMPILE_AND_RUNTIME),
+            new RemapToCreate(Constants.IMPLEMENTATION, true, true, PublishingMode.RUNTIME_ONLY),
+            new RemapToCreate(Constants.COMPILE_ONLY, true, false, PublishingMode.NONE),
+            new RemapToCreate(Constants.COMPILE_ONLY_API, true, false, PublishingMode.COMPILE_ONLY),
+            new RemapToCreate(Constants.RUNTIME_ONLY, false, true, PublishingMode.RUNTIME_ONLY)
         );
     }
 }
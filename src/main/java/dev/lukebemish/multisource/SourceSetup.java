@@ -12,22 +12,26 @@
 public class SourceSetup {
     private final String project;
     private final String name;
+    private final Settings settings;
+    private final ProjectActions actions;
     private final List<Action<Project>> setupActions = new ArrayList<>();
     private String platform = "fabric";
 
-    @SuppressWarnings("UnstableApiUsage")
     @Inject
-    SourceSetup(String project, String name, Settings settings) {
+    SourceSetup(String project, String name, Settings settings, ProjectActions actions) {
         this.project = project;
         this.name = name;
+        this.settings = settings;
+        this.actions = actions;
+    }
 
+    /**
+     * Includes the subproject for this source set in the build, and sets it up when it is configured.
+     */
+    void register() {
         String key = (project.equals(":") ? "" : project) + ":" + name;
         settings.include(key);
-        settings.getGradle().getLifecycle().beforeProject(p -> {
-            if (p.getPath().equals(key)) {
-                executeOnProject(p);
-            }
-        });
+        actions.register(key, this::executeOnProject);
     }
 
     private void executeOnProject(Project p) {
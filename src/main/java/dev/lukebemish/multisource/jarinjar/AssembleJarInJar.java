@@ -0,0 +1,133 @@
+package dev.lukebemish.multisource.jarinjar;
+
+import dev.lukebemish.multisource.ArchiveDigests;
+import com.google.common.collect.Maps;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipFile;
+
+/**
+ * Writes the input jar of a {@link JarInJar} task to its output with the nested jars and any patched metadata added,
+ * in a single pass; entries of the input jar are transferred without being recompressed.
+ */
+public abstract class AssembleJarInJar implements WorkAction<AssembleJarInJar.Parameters> {
+    private static final Logger LOGGER = Logging.getLogger(AssembleJarInJar.class);
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    public interface Parameters extends WorkParameters {
+        RegularFileProperty getInputFile();
+        RegularFileProperty getOutputFile();
+        ListProperty<ResolvedNestedJar> getJars();
+        Property<Boolean> getMakeFabricJsons();
+        Property<Boolean> getMakeNeoMetadata();
+        Property<Boolean> getStoreNestedJars();
+        Property<Boolean> getReproducibleOutput();
+        Property<Boolean> getWriteChecksums();
+        Property<NestedJarCache> getNestedJarCache();
+    }
+
+    @Override
+    public void execute() {
+        try {
+            assemble();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void assemble() throws IOException {
+        Path input = getParameters().getInputFile().get().getAsFile().toPath();
+        Path output = getParameters().getOutputFile().get().getAsFile().toPath();
+        List<ResolvedNestedJar> includedJars = getParameters().getJars().get();
+        var nestedJarCache = getParameters().getNestedJarCache().get();
+        boolean makeFabricJsons = getParameters().getMakeFabricJsons().get();
+        boolean reproducible = getParameters().getReproducibleOutput().get();
+
+        Map<String, ZipEntrySource> entries = Maps.newHashMap();
+        boolean storeNestedJars = getParameters().getStoreNestedJars().get();
+        List<NeoMetadataEntry> neoMetadataEntries = new ArrayList<>();
+        for (var jar : includedJars) {
+            // Already prepared, so this only looks up the results
+            var prepared = PrepareNestedJar.prepare(nestedJarCache, jar, makeFabricJsons);
+            var index = prepared.index();
+            entries.put("META-INF/jars/"+jar.getFile().getName(), storeNestedJars ? new ZipEntrySource.StoredFile(prepared.file(), index.crc(), index.size()) : new ZipEntrySource.FileContents(prepared.file()));
+            neoMetadataEntries.add(jar.createContainerMetadata(prepared.originalIndex()));
+        }
+        if (makeFabricJsons && !includedJars.isEmpty()) {
+            try (ZipFile original = new ZipFile(input.toFile())) {
+                var fmj = original.getEntry("fabric.mod.json");
+                if (fmj != null) {
+                    try (var is = original.getInputStream(fmj);
+                         var reader = new InputStreamReader(is)) {
+                        var json = GSON.fromJson(reader, JsonObject.class);
+                        JsonArray jars;
+                        if (json.has("jars")) {
+                            jars = json.getAsJsonArray("jars");
+                        } else {
+                            jars = new JsonArray();
+                        }
+                        for (var jar : includedJars) {
+                            JsonObject nestedJarEntry = new JsonObject();
+                            nestedJarEntry.addProperty("file", "META-INF/jars/" + jar.getFile().getName());
+                            jars.add(nestedJarEntry);
+                        }
+                        json.remove("jars");
+                        json.add("jars", jars);
+                        byte[] bytes = GSON.toJson(reproducible ? sortKeys(json) : json).getBytes(StandardCharsets.UTF_8);
+                        entries.put("fabric.mod.json", new ZipEntrySource.Bytes(bytes));
+                    } catch (Exception ignored) {
+                        // Could not parse FMJ?
+                        LOGGER.warn("Could not parse fabric.mod.json from the original jar, ignoring.");
+                    }
+                }
+            }
+        }
+        if (getParameters().getMakeNeoMetadata().get()) {
+            var metadata = new NeoMetadata(neoMetadataEntries);
+            if (!metadata.jars().isEmpty()) {
+                entries.put("META-INF/jarjar/metadata.json", new ZipEntrySource.Bytes(metadata.toJsonBytes()));
+            }
+        }
+        var digests = getParameters().getWriteChecksums().get() ? new ArchiveDigests() : null;
+        if (reproducible) {
+            ZipArchiveWriter.copyReproducibly(input, output, entries, digests);
+        } else {
+            ZipArchiveWriter.copyWithEntries(input, output, entries, digests);
+        }
+        if (digests != null) {
+            digests.writeSidecars(output);
+        }
+    }
+
+    private static JsonElement sortKeys(JsonElement element) {
+        if (element instanceof JsonObject object) {
+            var sorted = new JsonObject();
+            object.keySet().stream().sorted().forEach(key -> sorted.add(key, sortKeys(object.get(key))));
+            return sorted;
+        } else if (element instanceof JsonArray array) {
+            var sorted = new JsonArray();
+            array.forEach(child -> sorted.add(sortKeys(child)));
+            return sorted;
+        }
+        return element;
+    }
+}
@@ -0,0 +1,181 @@
+package dev.lukebemish.multisource.jarinjar;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.invocation.Gradle;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A content-addressed store, shared by every build using the same Gradle user home, for nested jars that have to be
+ * modified before being included, so that they are only ever generated once for a given input. Also holds the
+ * {@link NestedJarIndex} of every nested jar seen, so that each jar is only scanned once. Anything not used for
+ * {@value #MAX_UNUSED_DAYS} days is removed, checked at most once a day when a build finishes.
+ */
+public abstract class NestedJarCache implements BuildService<NestedJarCache.Parameters>, AutoCloseable {
+    private static final String NAME = "multisourceNestedJarCache";
+    private static final Gson GSON = new Gson();
+    private static final String INDEX_DIRECTORY = "index";
+    private static final String CLEANUP_MARKER = "cleanup";
+    private static final int MAX_UNUSED_DAYS = 30;
+
+    private final Map<String, NestedJarIndex> indexes = new ConcurrentHashMap<>();
+
+    public interface Parameters extends BuildServiceParameters {
+        DirectoryProperty getCacheDirectory();
+    }
+
+    public static Provider<NestedJarCache> register(Gradle gradle) {
+        return gradle.getSharedServices().registerIfAbsent(NAME, NestedJarCache.class, spec ->
+            spec.getParameters().getCacheDirectory().set(new File(gradle.getGradleUserHomeDir(), "caches/multisource/nested-jars"))
+        );
+    }
+
+    /**
+     * Finds the index of a nested jar, scanning it if it has not been seen in this or a previous build. Within a build,
+     * jars are looked up by path, size and modification time, so that a jar that has already been indexed is not read
+     * again. Indexes kept between builds are looked up by a fast hash of the jar's contents instead, as a jar can be
+     * replaced by one of the same size without its modification time changing, and a stale index would lead to
+     * entries with the wrong CRC being written.
+     */
+    public NestedJarIndex index(Path file) throws IOException {
+        var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        String stamp = file.toAbsolutePath() + "\n" + attributes.size() + "\n" + attributes.lastModifiedTime().toMillis();
+        var existing = indexes.get(stamp);
+        if (existing != null) {
+            return existing;
+        }
+
+        String key = NestedJarIndex.contentKey(file);
+        Path stored = cacheDirectory().resolve(INDEX_DIRECTORY).resolve(key + ".json");
+        NestedJarIndex index = null;
+        if (Files.exists(stored)) {
+            try (var reader = Files.newBufferedReader(stored)) {
+                index = GSON.fromJson(reader, NestedJarIndex.class);
+                markUsed(stored);
+            } catch (IOException | JsonParseException ignored) {
+                // Unreadable, so it is scanned again and replaced
+            }
+        }
+        if (index == null) {
+            index = NestedJarIndex.scan(file);
+            byte[] json = GSON.toJson(index).getBytes(StandardCharsets.UTF_8);
+            Files.createDirectories(stored.getParent());
+            Path temp = stored.resolveSibling(key + "." + UUID.randomUUID() + ".tmp");
+            try {
+                Files.write(temp, json);
+                Files.move(temp, stored, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+        indexes.put(stamp, index);
+        return index;
+    }
+
+    public interface Generator {
+        void generate(Path output) throws IOException;
+    }
+
+    /**
+     * Finds the file stored under the given key, generating it first if it is not present.
+     * @param key a hash of everything the generated file depends on
+     * @param fileName the name the file should have
+     */
+    public Path get(String key, String fileName, Generator generator) throws IOException {
+        Path directory = cacheDirectory().resolve(key);
+        Path output = directory.resolve(fileName);
+        if (Files.exists(output)) {
+            markUsed(directory);
+            return output;
+        }
+        Files.createDirectories(directory);
+        // Other builds may be generating the same file, so it only appears once it has been fully written
+        Path temp = directory.resolve(fileName + "." + UUID.randomUUID() + ".tmp");
+        try {
+            generator.generate(temp);
+            Files.move(temp, output, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException ignored) {
+            // Generated by someone else in the meantime
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return output;
+    }
+
+    /**
+     * Removes indexes and generated jars that have not been used for {@value #MAX_UNUSED_DAYS} days, unless this has
+     * already been done in the last day.
+     */
+    @Override
+    public void close() throws IOException {
+        Path root = cacheDirectory();
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        Path marker = root.resolve(CLEANUP_MARKER);
+        var now = Instant.now();
+        if (Files.exists(marker) && Files.getLastModifiedTime(marker).toInstant().isAfter(now.minus(1, ChronoUnit.DAYS))) {
+            return;
+        }
+        Files.write(marker, new byte[0]);
+
+        var cutoff = now.minus(MAX_UNUSED_DAYS, ChronoUnit.DAYS);
+        try (var children = Files.list(root)) {
+            for (var child : children.toList()) {
+                if (child.getFileName().toString().equals(INDEX_DIRECTORY)) {
+                    try (var indexes = Files.list(child)) {
+                        for (var index : indexes.toList()) {
+                            deleteIfUnused(index, cutoff);
+                        }
+                    }
+                } else if (Files.isDirectory(child)) {
+                    deleteIfUnused(child, cutoff);
+                }
+            }
+        }
+    }
+
+    Path cacheDirectory() {
+        return getParameters().getCacheDirectory().get().getAsFile().toPath();
+    }
+
+    private static void markUsed(Path path) {
+        try {
+            Files.setLastModifiedTime(path, FileTime.from(Instant.now()));
+        } catch (IOException ignored) {
+            // At worst, it is removed while still in use and generated again
+        }
+    }
+
+    private static void deleteIfUnused(Path path, Instant cutoff) throws IOException {
+        if (Files.getLastModifiedTime(path).toInstant().isAfter(cutoff)) {
+            return;
+        }
+        if (Files.isDirectory(path)) {
+            try (var files = Files.list(path)) {
+                for (var file : files.toList()) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        Files.deleteIfExists(path);
+    }
+}
@@ -0,0 +1,139 @@
+package dev.lukebemish.multisource.jarinjar;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Everything about a nested jar that is needed to include it, collected in a single memory-mapped scan of the file.
+ * @param obfuscated whether the jar's manifest marks it as obfuscated
+ * @param hasFabricModJson whether the jar contains a {@code fabric.mod.json}
+ * @param entryCount the number of entries in the jar
+ * @param size the size of the jar file
+ * @param crc the CRC-32 of the jar file
+ * @param sha256 the SHA-256 hash of the jar file, as a hex string
+ */
+public record NestedJarIndex(boolean obfuscated, boolean hasFabricModJson, int entryCount, long size, long crc, String sha256) {
+    private static final long MAPPED_CHUNK_SIZE = 1L << 30;
+
+    /**
+     * {@return a hash of the contents of a jar, much cheaper to compute than a full scan}
+     */
+    static String contentKey(Path file) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            var hasher = Hashing.murmur3_128().newHasher().putLong(size);
+            for (long position = 0; position < size; position += MAPPED_CHUNK_SIZE) {
+                hasher.putBytes(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPED_CHUNK_SIZE, size - position)));
+            }
+            return hasher.hash().toString();
+        }
+    }
+
+    static NestedJarIndex scan(Path file) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            var crc = new CRC32();
+            MessageDigest sha256;
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+
+            MappedByteBuffer first = null;
+            for (long position = 0; position < size; position += MAPPED_CHUNK_SIZE) {
+                var chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPED_CHUNK_SIZE, size - position));
+                if (first == null) {
+                    first = chunk;
+                }
+                crc.update(chunk.duplicate());
+                sha256.update(chunk.duplicate());
+            }
+            String hash = HashCode.fromBytes(sha256.digest()).toString();
+
+            var directory = ZipCentralDirectory.read(channel);
+            if (directory == null || size > MAPPED_CHUNK_SIZE) {
+                return scanWithZipFile(file, size, crc.getValue(), hash);
+            }
+            boolean hasFabricModJson = false;
+            boolean obfuscated = false;
+            for (var entry : directory.entries()) {
+                if (entry.name().equals("fabric.mod.json")) {
+                    hasFabricModJson = true;
+                } else if (entry.name().equals(JarFile.MANIFEST_NAME)) {
+                    obfuscated = isObfuscated(new Manifest(new ByteArrayInputStream(readEntry(first, entry))));
+                }
+            }
+            return new NestedJarIndex(obfuscated, hasFabricModJson, directory.entries().size(), size, crc.getValue(), hash);
+        }
+    }
+
+    private static NestedJarIndex scanWithZipFile(Path file, long size, long crc, String hash) throws IOException {
+        try (var zipFile = new JarFile(file.toFile())) {
+            var manifest = zipFile.getManifest();
+            return new NestedJarIndex(
+                manifest != null && isObfuscated(manifest),
+                zipFile.getEntry("fabric.mod.json") != null,
+                zipFile.size(),
+                size,
+                crc,
+                hash
+            );
+        }
+    }
+
+    private static boolean isObfuscated(Manifest manifest) {
+        return manifest.getMainAttributes().containsKey("Obfuscated-By");
+    }
+
+    private static byte[] readEntry(MappedByteBuffer buffer, ZipCentralDirectory.Entry entry) throws IOException {
+        var local = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int offset = (int) entry.localHeaderOffset();
+        if (local.getInt(offset) != ZipCentralDirectory.LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Invalid local header for entry " + entry.name());
+        }
+        int nameLength = Short.toUnsignedInt(local.getShort(offset + 26));
+        int extraLength = Short.toUnsignedInt(local.getShort(offset + 28));
+        byte[] data = new byte[(int) entry.compressedSize()];
+        local.get(offset + ZipCentralDirectory.LOCAL_HEADER_LENGTH + nameLength + extraLength, data);
+        if (entry.method() == ZipEntry.STORED) {
+            return data;
+        } else if (entry.method() != ZipEntry.DEFLATED) {
+            throw new IOException("Unsupported compression method " + entry.method() + " for entry " + entry.name());
+        }
+        var inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            byte[] inflated = new byte[(int) entry.size()];
+            int length = 0;
+            while (length < inflated.length && !inflater.finished()) {
+                int read = inflater.inflate(inflated, length, inflated.length - length);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated data for entry " + entry.name());
+                }
+                length += read;
+            }
+            return inflated;
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid data for entry " + entry.name(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
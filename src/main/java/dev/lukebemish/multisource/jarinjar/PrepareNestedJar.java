@@ -0,0 +1,93 @@
+package dev.lukebemish.multisource.jarinjar;
+
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import org.gradle.api.provider.Property;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Indexes a single nested jar and, if needed, generates a copy of it with a {@code fabric.mod.json}. Results are
+ * kept in the {@link NestedJarCache}, so that nested jars can be prepared in parallel before a bundle is assembled.
+ */
+public abstract class PrepareNestedJar implements WorkAction<PrepareNestedJar.Parameters> {
+    // Matches the formatting loom uses for the files it generates
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    public interface Parameters extends WorkParameters {
+        Property<ResolvedNestedJar> getJar();
+        Property<Boolean> getMakeFabricJson();
+        Property<NestedJarCache> getNestedJarCache();
+    }
+
+    @Override
+    public void execute() {
+        try {
+            prepare(getParameters().getNestedJarCache().get(), getParameters().getJar().get(), getParameters().getMakeFabricJson().get());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param file the file to include
+     * @param originalIndex the index of the nested jar as resolved
+     * @param index the index of the file to include
+     */
+    record Prepared(Path file, NestedJarIndex originalIndex, NestedJarIndex index) {}
+
+    static Prepared prepare(NestedJarCache cache, ResolvedNestedJar jar, boolean makeFabricJson) throws IOException {
+        var file = jar.getFile().toPath();
+        var originalIndex = cache.index(file);
+        if (!makeFabricJson || originalIndex.hasFabricModJson()) {
+            return new Prepared(file, originalIndex, originalIndex);
+        }
+
+        byte[] fabricModJson = generateFabricModJson(jar).getBytes(StandardCharsets.UTF_8);
+        String key = Hashing.sha256().newHasher()
+            .putString(originalIndex.sha256(), StandardCharsets.UTF_8)
+            .putBytes(fabricModJson)
+            .hash()
+            .toString();
+        var generated = cache.get(key, jar.getFile().getName(), out ->
+            ZipArchiveWriter.copyWithEntries(file, out, Map.of("fabric.mod.json", new ZipEntrySource.Bytes(fabricModJson)))
+        );
+        return new Prepared(generated, originalIndex, cache.index(generated));
+    }
+
+    private static String generateFabricModJson(ResolvedNestedJar jar) {
+        String modId = (jar.getModuleGroup() + "_" + jar.getModuleName())
+            .replaceAll("\\.", "_")
+            .toLowerCase(Locale.ROOT);
+
+        // Let's follow the convention that loom does so we match up
+        if (modId.length() > 64) {
+            String hash = Hashing.sha256()
+                .hashString(modId, StandardCharsets.UTF_8)
+                .toString();
+            modId = modId.substring(0, 50) + hash.substring(0, 14);
+        }
+
+        final var jsonObject = new JsonObject();
+        jsonObject.addProperty("schemaVersion", 1);
+
+        jsonObject.addProperty("id", modId);
+        jsonObject.addProperty("version", jar.getVersion());
+        jsonObject.addProperty("name", jar.getModuleName());
+
+        JsonObject custom = new JsonObject();
+        custom.addProperty("dev.lukebemish.multisource:generated", true);
+        jsonObject.add("custom", custom);
+
+        return GSON.toJson(jsonObject);
+    }
+}
@@ -9,11 +9,9 @@
 import org.gradle.api.tasks.PathSensitivity;
 
 import java.io.File;
-import java.io.IOException;
-import java.util.jar.JarFile;
-import java.util.jar.Manifest;
+import java.io.Serializable;
 
-public class ResolvedNestedJar {
+public class ResolvedNestedJar implements Serializable {
     private final File file;
     private final String version;
     private final String versionRange;
@@ -43,8 +41,8 @@ public NeoContainedVersion createContainedVersion() {
         }
     }
 
-    public NeoMetadataEntry createContainerMetadata() {
-        return new NeoMetadataEntry(createContainedVersion(), createContainedJarIdentifier(), "META-INF/jars/"+file.getName(), isObfuscated(file));
+    public NeoMetadataEntry createContainerMetadata(NestedJarIndex index) {
+        return new NeoMetadataEntry(createContainedVersion(), createContainedJarIdentifier(), "META-INF/jars/"+file.getName(), index.obfuscated());
     }
 
     @InputFile
@@ -72,13 +70,4 @@ public String getModuleGroup() {
     public String getModuleName() {
         return artifact;
     }
-
-    private static boolean isObfuscated(final File dependency) {
-        try(final JarFile jarFile = new JarFile(dependency)) {
-            final Manifest manifest = jarFile.getManifest();
-            return manifest.getMainAttributes().containsKey("Obfuscated-By");
-        } catch (IOException e) {
-            throw new RuntimeException("Could not read jar file for nested jar", e);
-        }
-    }
 }
@@ -0,0 +1,434 @@
+package dev.lukebemish.multisource.jarinjar;
+
+import dev.lukebemish.multisource.ArchiveDigests;
+import org.apache.commons.io.IOUtils;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes zip entries sequentially to a new file, and finishes the archive with a fresh central directory. Entries from
+ * other archives are copied without being inflated and deflated again; when a source archive is only added to, its
+ * entries are transferred as a single range and keep their original central directory records.
+ */
+final class ZipArchiveWriter {
+    private static final int DATA_DESCRIPTOR_FLAG = 0x0008;
+    private static final int UTF8_FLAG = 0x0800;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int DATA_DESCRIPTOR_LENGTH = 16;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // 1980-01-01 00:00, the earliest representable DOS time
+    private static final int DOS_TIME = 0;
+    private static final int DOS_DATE = (1 << 5) | 1;
+    // Jar readers that stream entries expect the manifest to come first
+    private static final Comparator<String> REPRODUCIBLE_ORDER = Comparator
+        .<String, Boolean>comparing(name -> !name.equals("META-INF/") && !name.equals(JarFile.MANIFEST_NAME))
+        .thenComparing(Comparator.naturalOrder());
+
+    private final FileChannel channel;
+    private final @Nullable ArchiveDigests digests;
+    private final ByteArrayOutputStream central = new ByteArrayOutputStream();
+    private long position;
+    private int count;
+
+    /**
+     * @param channel an empty file to write the archive to
+     * @param digests if present, updated with every byte written
+     */
+    ZipArchiveWriter(FileChannel channel, @Nullable ArchiveDigests digests) {
+        this.channel = channel;
+        this.digests = digests;
+    }
+
+    /**
+     * Writes a copy of a zip file with the given entries added, replacing any existing entries with the same names.
+     * Entries of the source file are transferred without being recompressed.
+     */
+    static void copyWithEntries(Path source, Path target, Map<String, ZipEntrySource> data) throws IOException {
+        copyWithEntries(source, target, data, null);
+    }
+
+    /**
+     * Writes a copy of a zip file with the given entries added, like {@link #copyWithEntries(Path, Path, Map)}.
+     * @param digests if present, updated with the contents of the written file
+     */
+    static void copyWithEntries(Path source, Path target, Map<String, ZipEntrySource> data, @Nullable ArchiveDigests digests) throws IOException {
+        try (var in = FileChannel.open(source, StandardOpenOption.READ);
+             var out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            var directory = ZipCentralDirectory.read(in);
+            if (directory != null) {
+                var writer = new ZipArchiveWriter(out, digests);
+                if (!replacesEntries(directory, data)) {
+                    writer.transfer(in, 0, directory.offset());
+                    for (var entry : directory.entries()) {
+                        writer.keep(entry);
+                    }
+                } else {
+                    // Entries are moved as-is, still compressed, in the order their data appears in the file
+                    var entries = directory.entries().stream()
+                        .sorted(Comparator.comparingLong(ZipCentralDirectory.Entry::localHeaderOffset))
+                        .toList();
+                    for (int i = 0; i < entries.size(); i++) {
+                        var entry = entries.get(i);
+                        long end = i + 1 < entries.size() ? entries.get(i + 1).localHeaderOffset() : directory.offset();
+                        if (!data.containsKey(entry.name())) {
+                            writer.copy(in, entry, end - entry.localHeaderOffset());
+                        }
+                    }
+                }
+                for (var entry : data.entrySet().stream().sorted(Map.Entry.comparingByKey()).toList()) {
+                    writer.writeEntry(entry.getKey(), entry.getValue());
+                }
+                writer.finish(directory.comment());
+                return;
+            }
+        }
+
+        rewriteZip64Entries(source, target, data, false, digests);
+    }
+
+    /**
+     * Writes a copy of a zip file with the given entries added, like {@link #copyWithEntries}, but with every entry
+     * normalized so that the same contents always give the same bytes: entries are sorted by name after the manifest,
+     * and all timestamps, extra fields, comments, file attributes and data descriptors are dropped. The compressed data
+     * of existing entries is still transferred as-is.
+     */
+    static void copyReproducibly(Path source, Path target, Map<String, ZipEntrySource> data, @Nullable ArchiveDigests digests) throws IOException {
+        try (var in = FileChannel.open(source, StandardOpenOption.READ);
+             var out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            var directory = ZipCentralDirectory.read(in);
+            if (directory != null) {
+                Map<String, ZipCentralDirectory.Entry> existing = new HashMap<>();
+                for (var entry : directory.entries()) {
+                    if (!data.containsKey(entry.name())) {
+                        existing.putIfAbsent(entry.name(), entry);
+                    }
+                }
+                var names = new TreeSet<>(REPRODUCIBLE_ORDER);
+                names.addAll(existing.keySet());
+                names.addAll(data.keySet());
+
+                var writer = new ZipArchiveWriter(out, digests);
+                for (var name : names) {
+                    var entry = existing.get(name);
+                    if (entry != null) {
+                        writer.copyNormalized(in, entry);
+                    } else {
+                        writer.writeEntry(name, data.get(name));
+                    }
+                }
+                writer.finish(new byte[0]);
+                return;
+            }
+        }
+
+        rewriteZip64Entries(source, target, data, true, digests);
+    }
+
+    private static boolean replacesEntries(ZipCentralDirectory directory, Map<String, ZipEntrySource> data) {
+        return directory.entries().stream().anyMatch(entry -> data.containsKey(entry.name()));
+    }
+
+    private static void rewriteZip64Entries(Path source, Path target, Map<String, ZipEntrySource> data, boolean reproducible, @Nullable ArchiveDigests digests) throws IOException {
+        long time = new GregorianCalendar(1980, Calendar.JANUARY, 1, 0, 0, 0).getTimeInMillis();
+        try (var zipIn = new ZipFile(source.toFile());
+             var os = Files.newOutputStream(target);
+             var zipOut = new ZipOutputStream(digests == null ? os : digests.wrap(os))) {
+            if (reproducible) {
+                var names = new TreeSet<>(REPRODUCIBLE_ORDER);
+                zipIn.stream().map(ZipEntry::getName).forEach(names::add);
+                names.addAll(data.keySet());
+                for (var name : names) {
+                    var zipEntry = new ZipEntry(name);
+                    zipEntry.setTime(time);
+                    zipOut.putNextEntry(zipEntry);
+                    var added = data.get(name);
+                    if (added != null) {
+                        added.writeTo(zipOut);
+                    } else {
+                        try (var is = zipIn.getInputStream(zipIn.getEntry(name))) {
+                            IOUtils.copy(is, zipOut);
+                        }
+                    }
+                    zipOut.closeEntry();
+                }
+                return;
+            }
+
+            var entries = zipIn.entries();
+            while (entries.hasMoreElements()) {
+                var entry = entries.nextElement();
+                if (data.containsKey(entry.getName())) {
+                    continue;
+                }
+                zipOut.putNextEntry(entry);
+                IOUtils.copy(zipIn.getInputStream(entry), zipOut);
+                zipOut.closeEntry();
+            }
+
+            for (var entry : data.entrySet().stream().sorted(Map.Entry.comparingByKey()).toList()) {
+                var zipEntry = new ZipEntry(entry.getKey());
+                zipOut.putNextEntry(zipEntry);
+                zipEntry.setTime(time);
+                entry.getValue().writeTo(zipOut);
+                zipOut.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * Keeps an entry whose data has already been written at the same offset by {@link #transfer}.
+     */
+    void keep(ZipCentralDirectory.Entry entry) {
+        central.writeBytes(entry.record());
+        count++;
+    }
+
+    /**
+     * Copies the bytes of a range of another archive without interpreting them. Used with {@link #keep} to carry
+     * over entries that end up at the same offsets in this archive.
+     */
+    void transfer(FileChannel source, long start, long length) throws IOException {
+        if (digests != null) {
+            digests.update(source, start, length);
+        }
+        long end = start + length;
+        while (start < end) {
+            long transferred = source.transferTo(start, end - start, channel);
+            if (transferred <= 0) {
+                throw new IOException("Unexpected end of zip file");
+            }
+            start += transferred;
+            position += transferred;
+        }
+    }
+
+    /**
+     * Copies an entry from another archive, still compressed, along with its local header and any data descriptor.
+     * @param length the length of the entry's local record in the source archive
+     */
+    void copy(FileChannel source, ZipCentralDirectory.Entry entry, long length) throws IOException {
+        byte[] record = entry.record().clone();
+        ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN).putInt(42, (int) checkOffset(position));
+        transfer(source, entry.localHeaderOffset(), length);
+        central.writeBytes(record);
+        count++;
+    }
+
+    /**
+     * Copies the compressed data of an entry from another archive under fresh headers, leaving out its timestamp,
+     * extra fields, comment, attributes and any data descriptor.
+     */
+    void copyNormalized(FileChannel source, ZipCentralDirectory.Entry entry) throws IOException {
+        long dataOffset = entry.dataOffset(source);
+        byte[] nameBytes = entry.name().getBytes(StandardCharsets.UTF_8);
+        long offset = position;
+        writeLocalHeader(nameBytes, UTF8_FLAG, entry.method(), entry.crc(), entry.compressedSize(), entry.size());
+        transfer(source, dataOffset, entry.compressedSize());
+        addCentralRecord(nameBytes, UTF8_FLAG, entry.method(), entry.crc(), entry.compressedSize(), entry.size(), offset);
+    }
+
+    void writeEntry(String name, ZipEntrySource source) throws IOException {
+        if (source instanceof ZipEntrySource.Bytes bytes) {
+            writeEntry(name, bytes.bytes());
+        } else if (source instanceof ZipEntrySource.FileContents file) {
+            writeEntry(name, file.path());
+        } else if (source instanceof ZipEntrySource.StoredFile file) {
+            writeStoredEntry(name, file.path(), file.crc(), file.size());
+        }
+    }
+
+    private void writeEntry(String name, byte[] data) throws IOException {
+        var crc = new CRC32();
+        var compressed = new ByteArrayOutputStream();
+        deflate(new ByteArrayInputStream(data), crc, (buffer, length) -> compressed.write(buffer, 0, length));
+
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        long offset = position;
+        writeLocalHeader(nameBytes, UTF8_FLAG, ZipEntry.DEFLATED, crc.getValue(), compressed.size(), data.length);
+        write(ByteBuffer.wrap(compressed.toByteArray()));
+        addCentralRecord(nameBytes, UTF8_FLAG, ZipEntry.DEFLATED, crc.getValue(), compressed.size(), data.length, offset);
+    }
+
+    private void writeEntry(String name, Path file) throws IOException {
+        // The sizes and CRC are only known once the file has been read, so they follow the data in a descriptor
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int flags = UTF8_FLAG | DATA_DESCRIPTOR_FLAG;
+        long offset = position;
+        writeLocalHeader(nameBytes, flags, ZipEntry.DEFLATED, 0, 0, 0);
+
+        var crc = new CRC32();
+        long start = position;
+        long size;
+        try (var in = Files.newInputStream(file)) {
+            size = deflate(in, crc, (buffer, length) -> write(ByteBuffer.wrap(buffer, 0, length)));
+        }
+        long compressedSize = position - start;
+        checkSize(size);
+        checkSize(compressedSize);
+
+        var descriptor = header(DATA_DESCRIPTOR_LENGTH);
+        descriptor.putInt(DATA_DESCRIPTOR_SIGNATURE);
+        descriptor.putInt((int) crc.getValue());
+        descriptor.putInt((int) compressedSize);
+        descriptor.putInt((int) size);
+        write(descriptor.flip());
+        addCentralRecord(nameBytes, flags, ZipEntry.DEFLATED, crc.getValue(), compressedSize, size, offset);
+    }
+
+    private void writeStoredEntry(String name, Path file, long crc, long size) throws IOException {
+        try (var in = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (in.size() != size) {
+                throw new IOException("Expected " + file + " to be " + size + " bytes, but it is " + in.size() + " bytes");
+            }
+            checkSize(size);
+
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            long offset = position;
+            writeLocalHeader(nameBytes, UTF8_FLAG, ZipEntry.STORED, crc, size, size);
+            transfer(in, 0, size);
+            addCentralRecord(nameBytes, UTF8_FLAG, ZipEntry.STORED, crc, size, size, offset);
+        }
+    }
+
+    private void writeLocalHeader(byte[] nameBytes, int flags, int method, long crc, long compressedSize, long size) throws IOException {
+        var header = header(ZipCentralDirectory.LOCAL_HEADER_LENGTH + nameBytes.length);
+        header.putInt(ZipCentralDirectory.LOCAL_HEADER_SIGNATURE);
+        putEntryFields(header, flags, method, crc, compressedSize, size, nameBytes.length);
+        header.putShort((short) 0);
+        header.put(nameBytes);
+        write(header.flip());
+    }
+
+    private void addCentralRecord(byte[] nameBytes, int flags, int method, long crc, long compressedSize, long size, long offset) throws IOException {
+        var record = header(ZipCentralDirectory.CENTRAL_HEADER_LENGTH + nameBytes.length);
+        record.putInt(ZipCentralDirectory.CENTRAL_HEADER_SIGNATURE);
+        record.putShort((short) (method == ZipEntry.STORED ? 10 : 20));
+        putEntryFields(record, flags, method, crc, compressedSize, size, nameBytes.length);
+        record.putShort((short) 0);
+        record.putShort((short) 0);
+        record.putShort((short) 0);
+        record.putShort((short) 0);
+        record.putInt(0);
+        record.putInt((int) checkOffset(offset));
+        record.put(nameBytes);
+        central.writeBytes(record.array());
+        count++;
+    }
+
+    private interface DeflatedSink {
+        void accept(byte[] buffer, int length) throws IOException;
+    }
+
+    /**
+     * Deflates a stream with fixed-size buffers.
+     * @return the number of uncompressed bytes read
+     */
+    private static long deflate(InputStream in, CRC32 crc, DeflatedSink sink) throws IOException {
+        var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] input = new byte[BUFFER_SIZE];
+        byte[] output = new byte[BUFFER_SIZE];
+        long size = 0;
+        try {
+            int read;
+            while ((read = in.read(input)) != -1) {
+                crc.update(input, 0, read);
+                size += read;
+                deflater.setInput(input, 0, read);
+                while (!deflater.needsInput()) {
+                    sink.accept(output, deflater.deflate(output));
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                sink.accept(output, deflater.deflate(output));
+            }
+        } finally {
+            deflater.end();
+        }
+        return size;
+    }
+
+    /**
+     * Writes the central directory and end record.
+     */
+    void finish(byte[] comment) throws IOException {
+        if (count > 0xFFFF) {
+            throw new IOException("Too many entries for a non-zip64 archive: " + count);
+        }
+        long offset = checkOffset(position);
+        write(ByteBuffer.wrap(central.toByteArray()));
+
+        var end = header(ZipCentralDirectory.END_LENGTH + comment.length);
+        end.putInt(ZipCentralDirectory.END_SIGNATURE);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) count);
+        end.putShort((short) count);
+        end.putInt(central.size());
+        end.putInt((int) offset);
+        end.putShort((short) comment.length);
+        end.put(comment);
+        write(end.flip());
+    }
+
+    private static void putEntryFields(ByteBuffer buffer, int flags, int method, long crc, long compressedSize, long size, int nameLength) {
+        buffer.putShort((short) (method == ZipEntry.STORED ? 10 : 20));
+        buffer.putShort((short) flags);
+        buffer.putShort((short) method);
+        buffer.putShort((short) DOS_TIME);
+        buffer.putShort((short) DOS_DATE);
+        buffer.putInt((int) crc);
+        buffer.putInt((int) compressedSize);
+        buffer.putInt((int) size);
+        buffer.putShort((short) nameLength);
+    }
+
+    private static ByteBuffer header(int length) {
+        return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void checkSize(long size) throws IOException {
+        if (size >= 0xFFFFFFFFL) {
+            throw new IOException("Entry too large for a non-zip64 archive");
+        }
+    }
+
+    private static long checkOffset(long offset) throws IOException {
+        if (offset >= 0xFFFFFFFFL) {
+            throw new IOException("Archive too large for a non-zip64 archive");
+        }
+        return offset;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        if (digests != null) {
+            digests.update(buffer);
+        }
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer);
+        }
+    }
+}
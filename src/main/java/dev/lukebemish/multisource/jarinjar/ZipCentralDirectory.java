@@ -0,0 +1,145 @@
+package dev.lukebemish.multisource.jarinjar;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The parsed central directory of a zip file, with the raw bytes of each record kept so that entries can be carried
+ * over to a new central directory without being touched.
+ */
+final class ZipCentralDirectory {
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int END_SIGNATURE = 0x06054b50;
+    static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    static final int LOCAL_HEADER_LENGTH = 30;
+    static final int CENTRAL_HEADER_LENGTH = 46;
+    static final int END_LENGTH = 22;
+    static final int ZIP64_LOCATOR_LENGTH = 20;
+
+    private final List<Entry> entries;
+    private final long offset;
+    private final byte[] comment;
+
+    private ZipCentralDirectory(List<Entry> entries, long offset, byte[] comment) {
+        this.entries = entries;
+        this.offset = offset;
+        this.comment = comment;
+    }
+
+    List<Entry> entries() {
+        return entries;
+    }
+
+    /**
+     * {@return the offset the central directory starts at, which is also where the data of the last entry ends}
+     */
+    long offset() {
+        return offset;
+    }
+
+    byte[] comment() {
+        return comment;
+    }
+
+    record Entry(String name, byte[] record, int method, long crc, long compressedSize, long size, long localHeaderOffset) {
+        /**
+         * Finds where the compressed data of this entry starts, which depends on the lengths in its local header.
+         */
+        long dataOffset(FileChannel channel) throws IOException {
+            ByteBuffer local = readFully(channel, localHeaderOffset, LOCAL_HEADER_LENGTH);
+            if (local.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                throw new IOException("Invalid local header for entry " + name);
+            }
+            return localHeaderOffset + LOCAL_HEADER_LENGTH + Short.toUnsignedInt(local.getShort(26)) + Short.toUnsignedInt(local.getShort(28));
+        }
+    }
+
+    /**
+     * Reads the central directory of a zip file.
+     * @return the central directory, or {@code null} if the file is a zip64 archive or has data between its central
+     * directory and end record, neither of which can be safely edited in place
+     */
+    static @Nullable ZipCentralDirectory read(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < END_LENGTH) {
+            throw new IOException("Not a zip file: too small to contain an end of central directory record");
+        }
+        int tailLength = (int) Math.min(fileSize, END_LENGTH + 0xFFFF + ZIP64_LOCATOR_LENGTH);
+        ByteBuffer tail = readFully(channel, fileSize - tailLength, tailLength);
+
+        int end = -1;
+        for (int i = tailLength - END_LENGTH; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIGNATURE && i + END_LENGTH + Short.toUnsignedInt(tail.getShort(i + 20)) == tailLength) {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) {
+            throw new IOException("Not a zip file: could not find end of central directory record");
+        }
+        if (end >= ZIP64_LOCATOR_LENGTH && tail.getInt(end - ZIP64_LOCATOR_LENGTH) == ZIP64_LOCATOR_SIGNATURE) {
+            return null;
+        }
+
+        int count = Short.toUnsignedInt(tail.getShort(end + 10));
+        long size = Integer.toUnsignedLong(tail.getInt(end + 12));
+        long offset = Integer.toUnsignedLong(tail.getInt(end + 16));
+        byte[] comment = new byte[Short.toUnsignedInt(tail.getShort(end + 20))];
+        tail.get(end + END_LENGTH, comment);
+        long endPosition = fileSize - tailLength + end;
+        if (count == 0xFFFF || size == 0xFFFFFFFFL || offset == 0xFFFFFFFFL || offset + size != endPosition) {
+            return null;
+        }
+
+        ByteBuffer central = readFully(channel, offset, (int) size);
+        List<Entry> entries = new ArrayList<>(count);
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            if (position + CENTRAL_HEADER_LENGTH > size || central.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Invalid central directory record for entry " + i);
+            }
+            int nameLength = Short.toUnsignedInt(central.getShort(position + 28));
+            int extraLength = Short.toUnsignedInt(central.getShort(position + 30));
+            int commentLength = Short.toUnsignedInt(central.getShort(position + 32));
+            int recordLength = CENTRAL_HEADER_LENGTH + nameLength + extraLength + commentLength;
+
+            byte[] record = new byte[recordLength];
+            central.get(position, record);
+            String name = new String(record, CENTRAL_HEADER_LENGTH, nameLength, StandardCharsets.UTF_8);
+            long localHeaderOffset = Integer.toUnsignedLong(central.getInt(position + 42));
+            if (localHeaderOffset == 0xFFFFFFFFL) {
+                return null;
+            }
+            entries.add(new Entry(
+                name,
+                record,
+                Short.toUnsignedInt(central.getShort(position + 10)),
+                Integer.toUnsignedLong(central.getInt(position + 16)),
+                Integer.toUnsignedLong(central.getInt(position + 20)),
+                Integer.toUnsignedLong(central.getInt(position + 24)),
+                localHeaderOffset
+            ));
+            position += recordLength;
+        }
+        return new ZipCentralDirectory(List.copyOf(entries), offset, comment);
+    }
+
+    static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of zip file");
+            }
+        }
+        return buffer.flip();
+    }
+}
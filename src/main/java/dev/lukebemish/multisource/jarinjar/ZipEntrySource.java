@@ -0,0 +1,39 @@
+package dev.lukebemish.multisource.jarinjar;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The contents of an entry to be written to a zip file. File contents are streamed with a fixed-size buffer and are
+ * never loaded fully into memory.
+ */
+sealed interface ZipEntrySource {
+    void writeTo(OutputStream out) throws IOException;
+
+    record Bytes(byte[] bytes) implements ZipEntrySource {
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(bytes);
+        }
+    }
+
+    record FileContents(Path path) implements ZipEntrySource {
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            Files.copy(path, out);
+        }
+    }
+
+    /**
+     * A file to be written uncompressed, for contents such as nested jars that are already compressed. The CRC and
+     * size must already be known, as they are needed before the data is written.
+     */
+    record StoredFile(Path path, long crc, long size) implements ZipEntrySource {
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            Files.copy(path, out);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package dev.lukebemish.multisource.jarinjar;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NestedJarCacheTest {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void indexesReplacedJarsAgain() throws IOException {
+        Path cacheDirectory = tempDir.resolve("cache");
+        Path jar = tempDir.resolve("nested.jar");
+        var modified = FileTime.from(Instant.parse("2024-01-01T00:00:00Z"));
+
+        writeJar(jar, "first");
+        Files.setLastModifiedTime(jar, modified);
+        var first = cache(cacheDirectory).index(jar);
+
+        // Same path, size and modification time, but different contents
+        writeJar(jar, "other");
+        Files.setLastModifiedTime(jar, modified);
+        var second = cache(cacheDirectory).index(jar);
+
+        assertNotEquals(first.crc(), second.crc());
+        var crc = new CRC32();
+        crc.update(Files.readAllBytes(jar));
+        assertEquals(crc.getValue(), second.crc());
+        assertTrue(second.hasFabricModJson());
+    }
+
+    @Test
+    void removesUnusedEntries() throws IOException {
+        Path cacheDirectory = tempDir.resolve("cache");
+        Path jar = tempDir.resolve("nested.jar");
+        writeJar(jar, "first");
+        var cache = cache(cacheDirectory);
+        cache.index(jar);
+        Path unused = cache.get("unused", "unused.jar", output -> Files.writeString(output, "unused"));
+        Path used = cache.get("used", "used.jar", output -> Files.writeString(output, "used"));
+
+        var old = FileTime.from(Instant.now().minus(60, ChronoUnit.DAYS));
+        Files.setLastModifiedTime(unused.getParent(), old);
+        Files.setLastModifiedTime(used.getParent(), old);
+        try (var indexes = Files.list(cacheDirectory.resolve("index"))) {
+            for (var index : indexes.toList()) {
+                Files.setLastModifiedTime(index, old);
+            }
+        }
+        cache.get("used", "used.jar", output -> Files.writeString(output, "used"));
+        cache.close();
+
+        assertFalse(Files.exists(unused.getParent()));
+        assertTrue(Files.exists(used));
+        try (var indexes = Files.list(cacheDirectory.resolve("index"))) {
+            assertEquals(0, indexes.count());
+        }
+    }
+
+    private static NestedJarCache cache(Path cacheDirectory) {
+        return new NestedJarCache() {
+            @Override
+            public Parameters getParameters() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            Path cacheDirectory() {
+                return cacheDirectory;
+            }
+        };
+    }
+
+    private static void writeJar(Path path, String id) throws IOException {
+        try (var out = new ZipOutputStream(Files.newOutputStream(path))) {
+            out.putNextEntry(new ZipEntry(JarFile.MANIFEST_NAME));
+            out.write("Manifest-Version: 1.0\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("fabric.mod.json"));
+            out.write(("{\"id\":\"" + id + "\"}").getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+    }
+}
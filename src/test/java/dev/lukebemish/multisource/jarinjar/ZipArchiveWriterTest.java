@@ -0,0 +1,363 @@
+package dev.lukebemish.multisource.jarinjar;
+
+import dev.lukebemish.multisource.ArchiveDigests;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ZipArchiveWriterTest {
+    private static final int DATA_DESCRIPTOR_FLAG = 0x0008;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void keepsExistingEntriesInPlaceWhenOnlyAdding() throws IOException {
+        Path source = tempDir.resolve("source.jar");
+        var contents = sampleContents();
+        writeZip(source, contents, List.of("stored.txt"), "a comment");
+        Path target = tempDir.resolve("target.jar");
+
+        ZipArchiveWriter.copyWithEntries(source, target, Map.of("META-INF/jars/nested.jar", bytes("nested")));
+
+        long entriesEnd;
+        try (var channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            entriesEnd = ZipCentralDirectory.read(channel).offset();
+        }
+        byte[] sourceBytes = Files.readAllBytes(source);
+        byte[] targetBytes = Files.readAllBytes(target);
+        assertArrayEquals(Arrays.copyOf(sourceBytes, (int) entriesEnd), Arrays.copyOf(targetBytes, (int) entriesEnd));
+
+        var expected = new TreeMap<>(contents);
+        expected.put("META-INF/jars/nested.jar", "nested");
+        assertContents(target, expected);
+        assertComment(target, "a comment");
+    }
+
+    @Test
+    void replacesExistingEntries() throws IOException {
+        Path source = tempDir.resolve("source.jar");
+        var contents = sampleContents();
+        writeZip(source, contents, List.of("stored.txt"), "a comment");
+        Path target = tempDir.resolve("target.jar");
+
+        ZipArchiveWriter.copyWithEntries(source, target, Map.of(
+            "fabric.mod.json", bytes("{\"replaced\":true}"),
+            "META-INF/jars/nested.jar", bytes("nested")
+        ));
+
+        var expected = new TreeMap<>(contents);
+        expected.put("fabric.mod.json", "{\"replaced\":true}");
+        expected.put("META-INF/jars/nested.jar", "nested");
+        assertContents(target, expected);
+        assertComment(target, "a comment");
+    }
+
+    @Test
+    void copiesEntriesWithDataDescriptors() throws IOException {
+        Path source = tempDir.resolve("source.jar");
+        var contents = sampleContents();
+        writeZip(source, contents, List.of(), null);
+        try (var channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            for (var entry : ZipCentralDirectory.read(channel).entries()) {
+                assertEquals(DATA_DESCRIPTOR_FLAG, flags(entry) & DATA_DESCRIPTOR_FLAG, entry.name());
+            }
+        }
+
+        // Streaming readers locate the end of each entry's data by its descriptor
+        Path added = tempDir.resolve("added.jar");
+        ZipArchiveWriter.copyWithEntries(source, added, Map.of("added.txt", bytes("added")));
+        Path replaced = tempDir.resolve("replaced.jar");
+        ZipArchiveWriter.copyWithEntries(source, replaced, Map.of("fabric.mod.json", bytes("{}")));
+
+        var expectedAdded = new TreeMap<>(contents);
+        expectedAdded.put("added.txt", "added");
+        assertContents(added, expectedAdded);
+        var expectedReplaced = new TreeMap<>(contents);
+        expectedReplaced.put("fabric.mod.json", "{}");
+        assertContents(replaced, expectedReplaced);
+    }
+
+    @Test
+    void writesStoredAndDeflatedEntries() throws IOException {
+        Path source = tempDir.resolve("source.jar");
+        var contents = sampleContents();
+        writeZip(source, contents, List.of("stored.txt"), null);
+        Path nested = tempDir.resolve("nested.jar");
+        Files.writeString(nested, "stored nested jar");
+        Path file = tempDir.resolve("file.txt");
+        Files.writeString(file, "deflated file ".repeat(1000));
+        var crc = new CRC32();
+        crc.update(Files.readAllBytes(nested));
+        Path target = tempDir.resolve("target.jar");
+
+        ZipArchiveWriter.copyWithEntries(source, target, Map.of(
+            "META-INF/jars/nested.jar", new ZipEntrySource.StoredFile(nested, crc.getValue(), Files.size(nested)),
+            "file.txt", new ZipEntrySource.FileContents(file),
+            "bytes.txt", bytes("deflated bytes")
+        ));
+
+        var expected = new TreeMap<>(contents);
+        expected.put("META-INF/jars/nested.jar", "stored nested jar");
+        expected.put("file.txt", "deflated file ".repeat(1000));
+        expected.put("bytes.txt", "deflated bytes");
+        assertContents(target, expected);
+        try (var zip = new ZipFile(target.toFile())) {
+            assertEquals(ZipEntry.STORED, zip.getEntry("META-INF/jars/nested.jar").getMethod());
+            assertEquals(ZipEntry.STORED, zip.getEntry("stored.txt").getMethod());
+            assertEquals(ZipEntry.DEFLATED, zip.getEntry("file.txt").getMethod());
+            assertEquals(ZipEntry.DEFLATED, zip.getEntry("bytes.txt").getMethod());
+        }
+    }
+
+    @Test
+    void rejectsStoredFilesThatDoNotMatch() throws IOException {
+        Path source = tempDir.resolve("source.jar");
+        writeZip(source, sampleContents(), List.of(), null);
+        Path nested = tempDir.resolve("nested.jar");
+        Files.writeString(nested, "stored nested jar");
+        Path target = tempDir.resolve("target.jar");
+
+        assertThrows(IOException.class, () -> ZipArchiveWriter.copyWithEntries(source, target, Map.of(
+            "META-INF/jars/nested.jar", new ZipEntrySource.StoredFile(nested, 0, Files.size(nested) + 1)
+        )));
+    }
+
+    @Test
+    void fallsBackForZip64Archives() throws IOException {
+        Path source = tempDir.resolve("source.jar");
+        Map<String, String> contents = new TreeMap<>();
+        for (int i = 0; i < 0x10000; i++) {
+            contents.put("entries/" + i, "");
+        }
+        contents.put("fabric.mod.json", "{}");
+        writeZip(source, contents, List.of(), null);
+        try (var channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            assertNull(ZipCentralDirectory.read(channel));
+        }
+        Path target = tempDir.resolve("target.jar");
+
+        ZipArchiveWriter.copyWithEntries(source, target, Map.of(
+            "fabric.mod.json", bytes("{\"replaced\":true}"),
+            "META-INF/jars/nested.jar", bytes("nested")
+        ));
+
+        try (var zip = new ZipFile(target.toFile())) {
+            assertEquals(contents.size() + 1, zip.size());
+            assertEquals("{\"replaced\":true}", read(zip, "fabric.mod.json"));
+            assertEquals("nested", read(zip, "META-INF/jars/nested.jar"));
+            assertEquals("", read(zip, "entries/65535"));
+        }
+    }
+
+    @Test
+    void writesReproducibleArchives() throws IOException {
+        var contents = sampleContents();
+        Path first = tempDir.resolve("first.jar");
+        writeZip(first, contents, List.of("stored.txt"), "first");
+        var reversed = new LinkedHashMap<String, String>();
+        var names = new ArrayList<>(contents.keySet());
+        Collections.reverse(names);
+        names.forEach(name -> reversed.put(name, contents.get(name)));
+        Path second = tempDir.resolve("second.jar");
+        writeZip(second, reversed, List.of("stored.txt"), "second", LocalDateTime.of(2024, 6, 1, 12, 30));
+        assertNotEquals(Arrays.toString(Files.readAllBytes(first)), Arrays.toString(Files.readAllBytes(second)));
+
+        Map<String, ZipEntrySource> data = Map.of(
+            "fabric.mod.json", bytes("{\"replaced\":true}"),
+            "META-INF/jars/nested.jar", bytes("nested")
+        );
+        Path firstTarget = tempDir.resolve("first-target.jar");
+        ZipArchiveWriter.copyReproducibly(first, firstTarget, data, null);
+        Path secondTarget = tempDir.resolve("second-target.jar");
+        ZipArchiveWriter.copyReproducibly(second, secondTarget, data, null);
+
+        assertArrayEquals(Files.readAllBytes(firstTarget), Files.readAllBytes(secondTarget));
+        var expected = new TreeMap<>(contents);
+        expected.put("fabric.mod.json", "{\"replaced\":true}");
+        expected.put("META-INF/jars/nested.jar", "nested");
+        assertContents(firstTarget, expected);
+        assertComment(firstTarget, null);
+
+        List<String> order = new ArrayList<>();
+        try (var zip = new ZipFile(firstTarget.toFile())) {
+            for (var entry : Collections.list(zip.entries())) {
+                order.add(entry.getName());
+                assertEquals(LocalDateTime.of(1980, 1, 1, 0, 0), entry.getTimeLocal(), entry.getName());
+                assertNull(entry.getExtra(), entry.getName());
+            }
+        }
+        var sorted = new ArrayList<>(order.subList(1, order.size()));
+        Collections.sort(sorted);
+        assertEquals(JarFile.MANIFEST_NAME, order.get(0));
+        assertEquals(sorted, order.subList(1, order.size()));
+        try (var channel = FileChannel.open(firstTarget, StandardOpenOption.READ)) {
+            for (var entry : ZipCentralDirectory.read(channel).entries()) {
+                assertEquals(0, flags(entry) & DATA_DESCRIPTOR_FLAG, entry.name());
+            }
+        }
+    }
+
+    @Test
+    void digestsMatchWrittenArchive() throws IOException, NoSuchAlgorithmException {
+        Path source = tempDir.resolve("source.jar");
+        writeZip(source, sampleContents(), List.of("stored.txt"), "a comment");
+        Path nested = tempDir.resolve("nested.jar");
+        Files.writeString(nested, "stored nested jar");
+        var crc = new CRC32();
+        crc.update(Files.readAllBytes(nested));
+        var stored = new ZipEntrySource.StoredFile(nested, crc.getValue(), Files.size(nested));
+
+        Path added = tempDir.resolve("added.jar");
+        var addedDigests = new ArchiveDigests();
+        ZipArchiveWriter.copyWithEntries(source, added, Map.of("META-INF/jars/nested.jar", stored), addedDigests);
+        addedDigests.writeSidecars(added);
+        Path replaced = tempDir.resolve("replaced.jar");
+        var replacedDigests = new ArchiveDigests();
+        ZipArchiveWriter.copyWithEntries(source, replaced, Map.of("fabric.mod.json", bytes("{}"), "META-INF/jars/nested.jar", stored), replacedDigests);
+        replacedDigests.writeSidecars(replaced);
+        Path reproducible = tempDir.resolve("reproducible.jar");
+        var reproducibleDigests = new ArchiveDigests();
+        ZipArchiveWriter.copyReproducibly(source, reproducible, Map.of("META-INF/jars/nested.jar", stored), reproducibleDigests);
+        reproducibleDigests.writeSidecars(reproducible);
+
+        var algorithms = Map.of("md5", "MD5", "sha1", "SHA-1", "sha256", "SHA-256", "sha512", "SHA-512");
+        for (var archive : List.of(added, replaced, reproducible)) {
+            byte[] contents = Files.readAllBytes(archive);
+            for (var extension : ArchiveDigests.EXTENSIONS) {
+                String expected = HexFormat.of().formatHex(MessageDigest.getInstance(algorithms.get(extension)).digest(contents));
+                assertEquals(expected, Files.readString(ArchiveDigests.sidecar(archive, extension)), archive + "." + extension);
+            }
+        }
+    }
+
+    private static Map<String, String> sampleContents() {
+        Map<String, String> contents = new LinkedHashMap<>();
+        contents.put(JarFile.MANIFEST_NAME, "Manifest-Version: 1.0\r\n\r\n");
+        contents.put("fabric.mod.json", "{\"id\":\"test\"}");
+        for (int i = 0; i < 20; i++) {
+            contents.put("dev/lukebemish/Class" + i + ".class", ("class " + i + " ").repeat(200));
+        }
+        contents.put("stored.txt", "stored contents");
+        return contents;
+    }
+
+    private static void writeZip(Path path, Map<String, String> contents, List<String> stored, String comment) throws IOException {
+        writeZip(path, contents, stored, comment, LocalDateTime.of(2020, 1, 1, 0, 0));
+    }
+
+    private static void writeZip(Path path, Map<String, String> contents, List<String> stored, String comment, LocalDateTime time) throws IOException {
+        try (var out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            for (var entry : contents.entrySet()) {
+                byte[] data = entry.getValue().getBytes(StandardCharsets.UTF_8);
+                var zipEntry = new ZipEntry(entry.getKey());
+                zipEntry.setTimeLocal(time);
+                zipEntry.setLastModifiedTime(FileTime.from(time.toLocalDate().atStartOfDay().toInstant(ZoneOffset.UTC)));
+                if (stored.contains(entry.getKey())) {
+                    var crc = new CRC32();
+                    crc.update(data);
+                    zipEntry.setMethod(ZipEntry.STORED);
+                    zipEntry.setSize(data.length);
+                    zipEntry.setCrc(crc.getValue());
+                }
+                out.putNextEntry(zipEntry);
+                out.write(data);
+                out.closeEntry();
+            }
+            if (comment != null) {
+                out.setComment(comment);
+            }
+        }
+    }
+
+    private static ZipEntrySource bytes(String contents) {
+        return new ZipEntrySource.Bytes(contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static int flags(ZipCentralDirectory.Entry entry) {
+        return Short.toUnsignedInt(ByteBuffer.wrap(entry.record()).order(ByteOrder.LITTLE_ENDIAN).getShort(8));
+    }
+
+    private static String read(ZipFile zip, String name) throws IOException {
+        var entry = zip.getEntry(name);
+        assertNotNull(entry, name);
+        try (var in = zip.getInputStream(entry)) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Checks that the archive has exactly the given contents as seen by each of the JDK's zip readers, which locate
+     * entries in different ways: by the central directory, by streaming local headers, and through zipfs.
+     */
+    private static void assertContents(Path path, Map<String, String> expected) throws IOException {
+        Map<String, String> fromZipFile = new TreeMap<>();
+        try (var zip = new ZipFile(path.toFile())) {
+            for (var entry : Collections.list(zip.entries())) {
+                assertNull(fromZipFile.put(entry.getName(), read(zip, entry.getName())), entry.getName());
+            }
+        }
+        assertEquals(new TreeMap<>(expected), fromZipFile);
+
+        Map<String, String> fromStream = new TreeMap<>();
+        try (var in = new ZipInputStream(Files.newInputStream(path))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                assertNull(fromStream.put(entry.getName(), new String(in.readAllBytes(), StandardCharsets.UTF_8)), entry.getName());
+            }
+        }
+        assertEquals(new TreeMap<>(expected), fromStream);
+
+        Map<String, String> fromFileSystem = new TreeMap<>();
+        try (var fileSystem = FileSystems.newFileSystem(path)) {
+            try (var files = Files.walk(fileSystem.getPath("/"))) {
+                for (var file : files.filter(Files::isRegularFile).toList()) {
+                    fromFileSystem.put(file.toString().substring(1), Files.readString(file));
+                }
+            }
+        }
+        assertEquals(new TreeMap<>(expected), fromFileSystem);
+    }
+
+    private static void assertComment(Path path, String comment) throws IOException {
+        try (var zip = new ZipFile(path.toFile())) {
+            assertEquals(comment, zip.getComment());
+        }
+    }
+}